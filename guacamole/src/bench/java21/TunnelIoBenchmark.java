@@ -0,0 +1,491 @@
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.dynamic.DynamicConnectionServlet;
+import org.apache.guacamole.dynamic.TunnelIoExecutor;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.InetGuacamoleSocket;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 隧道 I/O 并发会话基准：DynamicConnectionServlet 在容器线程上同步读 vs 经 dispatch 转到虚拟线程
+ *
+ * 直接驱动真实的 servlet：每个会话先发 connect 请求建立到模拟 guacd 的隧道，之后像
+ * guacamole-common-js 的 HTTP 隧道一样始终保持一个长轮询读请求，当前响应收到数据后立即发出下一个。
+ * 请求在固定大小的容器线程池上执行 HttpServlet.service()，对应 Tomcat/Jetty 的 maxThreads；
+ * 请求支持 startAsync，dispatch 把读取交给 TunnelIoExecutor 后容器线程立即返回。
+ * - platform：关闭 dynamic-tunnel-virtual-threads，读请求占用容器线程直到被下一个读请求替换；
+ * - virtual：开启该属性，使用 Java 21 版本的 TunnelIoExecutor（虚拟线程 + 并发上限信号量）。
+ * 只替换了 doConnect 中建立 guacd 连接的部分（模拟 guacd 不做握手），读路径与生产一致。
+ * 统计在测量窗口内收到 90% 以上预期帧数的会话数。客户端、servlet 与模拟 guacd 在同一进程中，
+ * 会话数很大时结果也受 CPU 核数限制。
+ * 测量的是扩展自带的 DynamicConnectionServlet；Web 应用自带的 /tunnel、/websocket-tunnel 不经过 dispatch，
+ * 不受 dynamic-tunnel-virtual-threads 影响。
+ *
+ * 运行（JDK 21，扩展以 java21 profile 构建为 multi-release jar，否则加载的是 Java 8 版本的执行器）：
+ *   java -cp guacamole/target/guacamole-auth-dynamic-core-<版本>.jar:<guacamole-common、guacamole-ext、
+ *       servlet-api、slf4j-api、jackson 等依赖> guacamole/src/bench/java21/TunnelIoBenchmark.java [容器线程数] [会话数...]
+ */
+public class TunnelIoBenchmark {
+
+    private static final byte[] FRAME = "4.sync,13.1700000000000;".getBytes(StandardCharsets.UTF_8);
+    private static final long FRAME_INTERVAL_MS = 100;
+    private static final long DURATION_MS = 3000;
+
+    // 运行期间可修改的扩展属性，servlet 构造时读取
+    private static final Map<String, String> PROPERTIES = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        int containerThreads = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        List<Integer> sessionCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            sessionCounts.add(Integer.parseInt(args[i]));
+        }
+        if (sessionCounts.isEmpty()) {
+            sessionCounts.add(200);
+            sessionCounts.add(1000);
+            sessionCounts.add(4000);
+        }
+
+        TunnelIoExecutor probe = new TunnelIoExecutor(1);
+        probe.shutdown();
+        if (!probe.isAvailable()) {
+            System.err.println("TunnelIoExecutor is the Java 8 version; run on JDK 21 against the multi-release jar");
+            System.exit(1);
+        }
+        LocalEnvironment.getInstance().addGuacamoleProperties(PROPERTIES::get);
+        PROPERTIES.put("dynamic-tunnel-io-max-concurrent", "100000");
+
+        System.out.printf("container threads=%d, frame interval=%dms, window=%dms%n",
+                containerThreads, FRAME_INTERVAL_MS, DURATION_MS);
+        System.out.printf("%-10s %-9s %-16s %-14s%n", "sessions", "mode", "served sessions", "frames/s");
+
+        for (int sessions : sessionCounts) {
+            run(sessions, containerThreads, false);
+            run(sessions, containerThreads, true);
+        }
+        // 隧道映射的超时定时器不是守护线程
+        System.exit(0);
+    }
+
+    private static void run(int sessions, int containerThreads, boolean virtual) throws Exception {
+        PROPERTIES.put("dynamic-tunnel-virtual-threads", Boolean.toString(virtual));
+        ExecutorService container = Executors.newFixedThreadPool(containerThreads);
+        List<Session> clients = new ArrayList<>(sessions);
+        BenchServlet servlet;
+
+        try (FakeGuacd guacd = new FakeGuacd()) {
+            servlet = new BenchServlet(guacd.address());
+            for (int i = 0; i < sessions; i++) {
+                clients.add(Session.connect(servlet, container));
+            }
+            guacd.awaitAccepted(sessions);
+
+            long start = System.currentTimeMillis();
+            for (Session client : clients) {
+                client.windowEnd = start + DURATION_MS;
+                client.read();
+            }
+            Thread.sleep(DURATION_MS);
+            for (Session client : clients) {
+                client.running = false;
+            }
+        }
+
+        // guacd 关闭后隧道读到结束，排队中的请求很快失败返回
+        container.shutdown();
+        container.awaitTermination(30, TimeUnit.SECONDS);
+        servlet.destroy();
+
+        long expected = DURATION_MS / FRAME_INTERVAL_MS;
+        long served = 0;
+        long frames = 0;
+        for (Session client : clients) {
+            long received = client.frames.get();
+            frames += received;
+            if (received >= expected * 9 / 10) {
+                served++;
+            }
+        }
+        System.out.printf("%-10d %-9s %-16s %-14d%n", sessions, virtual ? "virtual" : "platform",
+                served + "/" + sessions, frames * 1000 / DURATION_MS);
+    }
+
+    /**
+     * 只替换 guacd 连接的建立，其余（注册、读写、dispatch）走 DynamicConnectionServlet 本身
+     */
+    private static class BenchServlet extends DynamicConnectionServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final InetSocketAddress guacd;
+
+        BenchServlet(InetSocketAddress guacd) {
+            this.guacd = guacd;
+        }
+
+        @Override
+        protected GuacamoleTunnel doConnect(HttpServletRequest request) throws GuacamoleException {
+            return new SimpleGuacamoleTunnel(new InetGuacamoleSocket(guacd.getHostString(), guacd.getPort()));
+        }
+    }
+
+    /**
+     * 一个浏览器端的 HTTP 隧道：始终保持一个读请求，响应中出现数据就发出下一个
+     */
+    private static class Session {
+
+        final BenchServlet servlet;
+        final ExecutorService container;
+        final String uuid;
+        final String token;
+        final AtomicInteger sequence = new AtomicInteger();
+        final AtomicLong frames = new AtomicLong();
+        volatile long windowEnd;
+        volatile boolean running = true;
+
+        private Session(BenchServlet servlet, ExecutorService container, String uuid, String token) {
+            this.servlet = servlet;
+            this.container = container;
+            this.uuid = uuid;
+            this.token = token;
+        }
+
+        static Session connect(BenchServlet servlet, ExecutorService container) throws Exception {
+            Exchange exchange = new Exchange(servlet, null, "POST", "connect", null);
+            container.submit(exchange).get();
+            String token = exchange.headers.get("Guacamole-Tunnel-Token");
+            if (token == null) {
+                throw new IllegalStateException("connect failed with status " + exchange.status);
+            }
+            return new Session(servlet, container, exchange.body(), token);
+        }
+
+        void read() {
+            if (running) {
+                container.execute(new Exchange(servlet, this, "GET",
+                        "read:" + uuid + ":" + sequence.getAndIncrement(), token));
+            }
+        }
+
+        void received() {
+            if (System.currentTimeMillis() < windowEnd) {
+                frames.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 一次 HTTP 请求：request、response 与 AsyncContext 都是动态代理，只实现 servlet 用到的部分
+     */
+    private static class Exchange implements Runnable, InvocationHandler {
+
+        final BenchServlet servlet;
+        final Session session;
+        final String method;
+        final String query;
+        final String token;
+        final Map<String, String> headers = new ConcurrentHashMap<>();
+        final ResponseStream stream = new ResponseStream(this);
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        final AtomicBoolean nextIssued = new AtomicBoolean();
+        final AtomicBoolean completed = new AtomicBoolean();
+        final HttpServletRequest request;
+        final HttpServletResponse response;
+        final AsyncContext async;
+        volatile boolean asyncStarted;
+        volatile int status = HttpServletResponse.SC_OK;
+
+        Exchange(BenchServlet servlet, Session session, String method, String query, String token) {
+            this.servlet = servlet;
+            this.session = session;
+            this.method = method;
+            this.query = query;
+            this.token = token;
+            ClassLoader loader = TunnelIoBenchmark.class.getClassLoader();
+            this.request = (HttpServletRequest) Proxy.newProxyInstance(loader,
+                    new Class<?>[] { HttpServletRequest.class }, this);
+            this.response = (HttpServletResponse) Proxy.newProxyInstance(loader,
+                    new Class<?>[] { HttpServletResponse.class }, this);
+            this.async = (AsyncContext) Proxy.newProxyInstance(loader,
+                    new Class<?>[] { AsyncContext.class }, this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                servlet.service(request, response);
+            } catch (Exception e) {
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            } finally {
+                if (!asyncStarted) {
+                    complete();
+                }
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method invoked, Object[] args) {
+            switch (invoked.getName()) {
+                // HttpServletRequest
+                case "getMethod":
+                    return method;
+                case "getQueryString":
+                    return query;
+                case "getHeader":
+                    return "Guacamole-Tunnel-Token".equals(args[0]) ? token : null;
+                case "getRemoteAddr":
+                    return "127.0.0.1";
+                case "getContextPath":
+                    return "";
+                case "isAsyncSupported":
+                    return true;
+                case "startAsync":
+                    asyncStarted = true;
+                    return async;
+                // HttpServletResponse
+                case "getOutputStream":
+                    return stream;
+                case "getWriter":
+                    return writer;
+                case "setHeader":
+                case "addHeader":
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                case "setStatus":
+                case "sendError":
+                    status = (Integer) args[0];
+                    return null;
+                case "flushBuffer":
+                    stream.flush();
+                    return null;
+                // AsyncContext
+                case "getRequest":
+                    return request;
+                case "getResponse":
+                    return response;
+                case "complete":
+                    complete();
+                    return null;
+                // Object
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return method + " ?" + query;
+                default:
+                    return defaultValue(invoked.getReturnType());
+            }
+        }
+
+        /**
+         * 客户端收到数据后立即发出下一个读请求，servlet 据此结束当前读请求
+         */
+        void flushed() {
+            if (session != null && stream.hasData() && nextIssued.compareAndSet(false, true)) {
+                session.read();
+            }
+        }
+
+        void complete() {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            writer.flush();
+            if (session != null && status == HttpServletResponse.SC_OK && nextIssued.compareAndSet(false, true)) {
+                session.read();
+            }
+        }
+
+        String body() {
+            writer.flush();
+            return stream.body();
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == int.class) {
+                return 0;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 响应体：读请求只按指令计数（不计结束标记 0.;），connect 请求保留内容以取得隧道 UUID
+     */
+    private static class ResponseStream extends ServletOutputStream {
+
+        private final Exchange exchange;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int instructionLength;
+        private volatile boolean data;
+
+        ResponseStream(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void write(int b) {
+            if (exchange.session == null) {
+                body.write(b);
+                return;
+            }
+            if (b == ';') {
+                if (instructionLength > 2) {
+                    data = true;
+                    exchange.session.received();
+                }
+                instructionLength = 0;
+            } else {
+                instructionLength++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void flush() {
+            exchange.flushed();
+        }
+
+        boolean hasData() {
+            return data;
+        }
+
+        String body() {
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+        }
+    }
+
+    /**
+     * 模拟 guacd：单个 selector 线程接受连接，并按固定间隔向所有会话写一帧
+     */
+    private static class FakeGuacd implements AutoCloseable {
+
+        private final ServerSocketChannel server = ServerSocketChannel.open();
+        private final Selector selector = Selector.open();
+        private final List<SocketChannel> clients = new CopyOnWriteArrayList<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        FakeGuacd() throws IOException {
+            server.bind(new InetSocketAddress("127.0.0.1", 0), 65535);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            thread = new Thread(this::loop, "fake-guacd");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) server.getLocalAddress();
+        }
+
+        void awaitAccepted(int count) throws InterruptedException {
+            while (clients.size() < count) {
+                Thread.sleep(10);
+            }
+        }
+
+        private void loop() {
+            long nextFrame = System.currentTimeMillis() + FRAME_INTERVAL_MS;
+            ByteBuffer frame = ByteBuffer.wrap(FRAME);
+            while (running) {
+                try {
+                    selector.select(Math.max(1, nextFrame - System.currentTimeMillis()));
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isAcceptable()) {
+                            SocketChannel client;
+                            while ((client = server.accept()) != null) {
+                                client.configureBlocking(false);
+                                clients.add(client);
+                            }
+                        }
+                    }
+                    selector.selectedKeys().clear();
+
+                    if (System.currentTimeMillis() >= nextFrame) {
+                        for (SocketChannel client : clients) {
+                            frame.rewind();
+                            try {
+                                client.write(frame);
+                            } catch (IOException e) {
+                                clients.remove(client);
+                            }
+                        }
+                        nextFrame += FRAME_INTERVAL_MS;
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            selector.close();
+            server.close();
+        }
+    }
+}
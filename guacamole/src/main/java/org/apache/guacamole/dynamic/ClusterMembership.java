@@ -0,0 +1,221 @@
+package org.apache.guacamole.dynamic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多节点部署的成员与会话归属
+ *
+ * 开启后（配置了 dynamic-cluster-node）连接 ID 形如 dynamic-<uuid>~<节点名>，
+ * 路由时直接从 ID 读出所属节点，不需要共享存储或数据库查询。
+ * 所属节点已不在成员列表中、或请求中没有连接 ID 时，按一致性哈希环选择节点。
+ * 成员列表来自 dynamic-cluster-nodes，或 dynamic-cluster-nodes-file（修改后自动重新加载）。
+ */
+public class ClusterMembership {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterMembership.class);
+
+    static final char NODE_SEPARATOR = '~';
+
+    private static final long RELOAD_CHECK_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * 某一时刻的成员快照：节点名 -> 基础地址，由它构建的哈希环，以及基础地址解析出的 IP
+     */
+    private static final class Snapshot {
+        final Map<String, String> nodes;
+        final ConsistentHashRing ring;
+        final Set<String> addresses;
+
+        Snapshot(Map<String, String> nodes, int virtualNodes) {
+            this.nodes = Collections.unmodifiableMap(nodes);
+            this.ring = new ConsistentHashRing(nodes.keySet(), virtualNodes);
+            this.addresses = resolveAddresses(nodes);
+        }
+    }
+
+    private final String self;
+    private final int virtualNodes;
+    private final String staticNodes;
+    private final File nodesFile;
+
+    private volatile Snapshot snapshot;
+    private volatile long lastCheck = System.nanoTime();
+    private long nodesFileModified;
+
+    public ClusterMembership() {
+        this.self = sanitize(DynamicConnectionProperties.get(DynamicConnectionProperties.CLUSTER_NODE, null));
+        this.virtualNodes = Math.max(1, DynamicConnectionProperties.get(DynamicConnectionProperties.CLUSTER_VIRTUAL_NODES, 160));
+        this.staticNodes = DynamicConnectionProperties.get(DynamicConnectionProperties.CLUSTER_NODES, "");
+        String file = DynamicConnectionProperties.get(DynamicConnectionProperties.CLUSTER_NODES_FILE, null);
+        this.nodesFile = file != null ? new File(file) : null;
+
+        this.snapshot = new Snapshot(loadNodes(), virtualNodes);
+        if (isEnabled()) {
+            logger.info("🌐 Cluster node {} with members {}", self, snapshot.nodes.keySet());
+        }
+    }
+
+    public boolean isEnabled() {
+        return self != null;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * 生成带本节点名的 ID；未开启时与单节点的格式相同
+     */
+    public String mintId(String prefix) {
+        String id = prefix + UUID.randomUUID().toString();
+        return isEnabled() ? id + NODE_SEPARATOR + self : id;
+    }
+
+    /**
+     * 从 ID 中读出生成它的节点，没有节点名时返回 null
+     */
+    static String ownerOf(String id) {
+        int separator = id.indexOf(NODE_SEPARATOR);
+        return separator >= 0 && separator < id.length() - 1 ? id.substring(separator + 1) : null;
+    }
+
+    /**
+     * 连接 ID 应由哪个节点处理：生成它的节点仍是成员时就是该节点，否则按哈希环重新分配
+     */
+    public String routeId(String id) {
+        Snapshot current = snapshot;
+        String owner = ownerOf(id);
+        if (owner != null && (owner.equals(self) || current.nodes.containsKey(owner))) {
+            return owner;
+        }
+        return current.ring.isEmpty() ? self : current.ring.route(id);
+    }
+
+    /**
+     * 没有连接 ID 的请求按任意稳定的键（认证令牌、客户端地址）分配
+     */
+    public String routeKey(String key) {
+        Snapshot current = snapshot;
+        return current.ring.isEmpty() ? self : current.ring.route(key);
+    }
+
+    public boolean isMember(String node) {
+        return node != null && (node.equals(self) || snapshot.nodes.containsKey(node));
+    }
+
+    /**
+     * 客户端地址是否属于某个成员节点（按成员基础地址中的主机解析，成员列表变化时重新解析）
+     */
+    public boolean isMemberAddress(String address) {
+        return address != null && snapshot.addresses.contains(address);
+    }
+
+    /**
+     * 节点的基础地址（含 context path），不是成员时返回 null
+     */
+    public String getBaseUrl(String node) {
+        return snapshot.nodes.get(node);
+    }
+
+    /**
+     * 成员文件修改后重新构建哈希环；最多每 5 秒检查一次修改时间，调用方无需额外线程
+     */
+    public void refresh() {
+        if (nodesFile == null || System.nanoTime() - lastCheck < RELOAD_CHECK_NANOS) {
+            return;
+        }
+        synchronized (this) {
+            if (System.nanoTime() - lastCheck < RELOAD_CHECK_NANOS) {
+                return;
+            }
+            lastCheck = System.nanoTime();
+            if (nodesFile.lastModified() == nodesFileModified) {
+                return;
+            }
+            Snapshot updated = new Snapshot(loadNodes(), virtualNodes);
+            logger.info("🌐 Cluster membership changed: {} -> {}", snapshot.nodes.keySet(), updated.nodes.keySet());
+            snapshot = updated;
+        }
+    }
+
+    /**
+     * 读取成员列表，格式为 节点名=基础地址，属性中用逗号分隔，文件中每行一个（# 开头为注释）
+     */
+    private Map<String, String> loadNodes() {
+        Map<String, String> nodes = new LinkedHashMap<>();
+        parseNodes(staticNodes.split(","), nodes);
+        if (nodesFile != null) {
+            nodesFileModified = nodesFile.lastModified();
+            try {
+                parseNodes(new String(Files.readAllBytes(nodesFile.toPath()), StandardCharsets.UTF_8).split("\n"), nodes);
+            } catch (IOException e) {
+                logger.warn("⚠️ Failed to read cluster nodes file {}: {}", nodesFile, e.getMessage());
+            }
+        }
+        return nodes;
+    }
+
+    private static void parseNodes(String[] entries, Map<String, String> nodes) {
+        for (String entry : entries) {
+            entry = entry.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            int separator = entry.indexOf('=');
+            String name = separator > 0 ? sanitize(entry.substring(0, separator)) : null;
+            if (name == null) {
+                logger.warn("⚠️ Ignoring invalid cluster node entry: {}", entry);
+                continue;
+            }
+            String url = entry.substring(separator + 1).trim();
+            nodes.put(name, url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+    }
+
+    private static Set<String> resolveAddresses(Map<String, String> nodes) {
+        Set<String> addresses = new HashSet<>();
+        for (Map.Entry<String, String> node : nodes.entrySet()) {
+            try {
+                String host = new URI(node.getValue()).getHost();
+                if (host == null) {
+                    logger.warn("⚠️ Cluster node {} has no host in {}", node.getKey(), node.getValue());
+                    continue;
+                }
+                for (InetAddress address : InetAddress.getAllByName(host)) {
+                    addresses.add(address.getHostAddress());
+                }
+            } catch (URISyntaxException | UnknownHostException e) {
+                logger.warn("⚠️ Failed to resolve cluster node {}: {}", node.getKey(), e.getMessage());
+            }
+        }
+        return Collections.unmodifiableSet(addresses);
+    }
+
+    /**
+     * 节点名会出现在连接 ID 和 URL 中，只保留字母、数字和 . _ -
+     */
+    private static String sanitize(String name) {
+        if (name == null) {
+            return null;
+        }
+        String sanitized = name.trim().replaceAll("[^A-Za-z0-9._-]", "");
+        return sanitized.isEmpty() ? null : sanitized;
+    }
+}
@@ -0,0 +1,187 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * 连接存储中的紧凑配置
+ *
+ * 同一协议/配置组合的公共参数（字体、security、ignore-cert 等）作为模板全局共享，
+ * 每个连接只保存 hostname/port/username/password 等差异值，并编码在一个字节数组中。
+ * 调用 toConfiguration() 时才还原为 GuacamoleConfiguration。
+ *
+ * 模板按弱引用驻留：没有连接再引用时随 GC 释放，连接删除后不会留在全局表中。
+ */
+final class CompactConfiguration {
+
+    /** 每个连接各自不同的参数，按固定顺序保存在 delta 数组中，不进入共享模板 */
+    private static final String[] DELTA_KEYS = {
+        "hostname", "port", "username", "password", TunnelBandwidthScheduler.LIMIT_PARAMETER
+    };
+
+    // 值与自身的弱引用：键被回收时条目随之清除，值不会反过来让模板常驻
+    private static final Map<Template, WeakReference<Template>> TEMPLATES = new WeakHashMap<>();
+
+    private static final class Template {
+        final String protocol;
+        final String[] names;
+        final String[] values;
+        final int hash;
+
+        Template(String protocol, String[] names, String[] values) {
+            this.protocol = protocol;
+            this.names = names;
+            this.values = values;
+            this.hash = 31 * (31 * Objects.hashCode(protocol) + Arrays.hashCode(names)) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Template)) {
+                return false;
+            }
+            Template other = (Template) obj;
+            return hash == other.hash && Objects.equals(protocol, other.protocol)
+                    && Arrays.equals(names, other.names) && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final Template template;
+
+    // 差异参数按 DELTA_KEYS 顺序编码：每个值为变长长度 + UTF-8 内容。
+    // 长度字段保存 length + 1（0 表示未设置），每字节 7 位、高位为续位，短值只占 1 字节
+    private final byte[] delta;
+
+    private CompactConfiguration(Template template, byte[] delta) {
+        this.template = template;
+        this.delta = delta;
+    }
+
+    static CompactConfiguration of(GuacamoleConfiguration config) {
+        Map<String, String> shared = new TreeMap<>(config.getParameters());
+        byte[][] values = new byte[DELTA_KEYS.length][];
+        int size = 0;
+        for (int i = 0; i < DELTA_KEYS.length; i++) {
+            String value = shared.get(DELTA_KEYS[i]);
+            if (value != null) {
+                shared.remove(DELTA_KEYS[i]);
+                values[i] = value.getBytes(StandardCharsets.UTF_8);
+                size += values[i].length;
+            }
+            size += lengthSize(values[i] != null ? values[i].length + 1 : 0);
+        }
+
+        byte[] delta = new byte[size];
+        int offset = 0;
+        for (byte[] value : values) {
+            offset = writeLength(delta, offset, value != null ? value.length + 1 : 0);
+            if (value != null) {
+                System.arraycopy(value, 0, delta, offset, value.length);
+                offset += value.length;
+            }
+        }
+
+        return new CompactConfiguration(intern(new Template(config.getProtocol(),
+                shared.keySet().toArray(new String[0]), shared.values().toArray(new String[0]))), delta);
+    }
+
+    private static Template intern(Template template) {
+        synchronized (TEMPLATES) {
+            WeakReference<Template> existing = TEMPLATES.get(template);
+            Template interned = existing != null ? existing.get() : null;
+            if (interned != null) {
+                return interned;
+            }
+            TEMPLATES.put(template, new WeakReference<>(template));
+            return template;
+        }
+    }
+
+    private static int lengthSize(int length) {
+        int size = 1;
+        while ((length >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeLength(byte[] buffer, int offset, int length) {
+        while ((length & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        buffer[offset++] = (byte) length;
+        return offset;
+    }
+
+    /** 读出 offset 处的长度字段，返回值高 32 位为 length + 1，低 32 位为内容起始位置 */
+    private long readLength(int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = delta[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return ((long) length << 32) | offset;
+    }
+
+    String getProtocol() {
+        return template.protocol;
+    }
+
+    String getParameter(String name) {
+        int offset = 0;
+        for (String key : DELTA_KEYS) {
+            long field = readLength(offset);
+            int length = (int) (field >>> 32);
+            offset = (int) field;
+            if (length != 0) {
+                if (key.equals(name)) {
+                    return new String(delta, offset, length - 1, StandardCharsets.UTF_8);
+                }
+                offset += length - 1;
+            }
+        }
+        int index = Arrays.binarySearch(template.names, name);
+        return index >= 0 ? template.values[index] : null;
+    }
+
+    GuacamoleConfiguration toConfiguration() {
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol(template.protocol);
+        for (int i = 0; i < template.names.length; i++) {
+            config.setParameter(template.names[i], template.values[i]);
+        }
+        int offset = 0;
+        for (String key : DELTA_KEYS) {
+            long field = readLength(offset);
+            int length = (int) (field >>> 32);
+            offset = (int) field;
+            if (length != 0) {
+                config.setParameter(key, new String(delta, offset, length - 1, StandardCharsets.UTF_8));
+                offset += length - 1;
+            }
+        }
+        return config;
+    }
+
+    static int getTemplateCount() {
+        synchronized (TEMPLATES) {
+            return TEMPLATES.size();
+        }
+    }
+}
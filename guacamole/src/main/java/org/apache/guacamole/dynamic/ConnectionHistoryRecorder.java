@@ -0,0 +1,482 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 动态连接历史记录写入器
+ *
+ * 隧道打开/关闭事件先进入有界队列，由后台线程按数量或时间批量写入
+ * guacamole_connection_history。认证线程和隧道线程只做一次 offer，永不等待数据库；
+ * 数据库不可用时事件落盘到本地 spool 文件，恢复后优先回放。
+ */
+public class ConnectionHistoryRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionHistoryRecorder.class);
+
+    // 以生成键方式执行，驱动会追加 RETURNING history_id，批量插入后按顺序取回主键
+    private static final String INSERT_SQL =
+        "INSERT INTO guacamole_connection_history "
+      + "(username, remote_host, connection_name, start_date, end_date) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String[] INSERT_KEYS = { "history_id" };
+
+    private static final String UPDATE_SQL =
+        "UPDATE guacamole_connection_history SET end_date = ? WHERE history_id = ?";
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 200;
+    private static final int DEFAULT_FLUSH_INTERVAL = 2000;
+    private static final int CONNECT_TIMEOUT_SECONDS = 5;
+    private static final int MAX_NAME_LENGTH = 128;
+    private static final int MAX_REMOTE_HOST_LENGTH = 256;
+
+    /**
+     * 一次隧道会话对应一条历史记录
+     */
+    static class SessionRecord {
+        // 本地唯一标识，用于在 spool 回放时把结束事件对应到回放插入的行
+        final String sessionKey;
+        final String connectionName;
+        final String username;
+        final String remoteHost;
+        final long startDate;
+        volatile long endDate;
+        // 插入后由写入线程填入，0 表示尚未写入数据库
+        long historyId;
+
+        SessionRecord(String sessionKey, String connectionName, String username, String remoteHost,
+                      long startDate, long endDate, long historyId) {
+            this.sessionKey = sessionKey;
+            this.connectionName = truncate(connectionName, MAX_NAME_LENGTH);
+            this.username = truncate(username, MAX_NAME_LENGTH);
+            this.remoteHost = truncate(remoteHost, MAX_REMOTE_HOST_LENGTH);
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.historyId = historyId;
+        }
+    }
+
+    private static class HistoryEvent {
+        final boolean close;
+        final SessionRecord record;
+
+        HistoryEvent(boolean close, SessionRecord record) {
+            this.close = close;
+            this.record = record;
+        }
+    }
+
+    private final boolean enabled;
+    private final BlockingQueue<HistoryEvent> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final File spoolFile;
+    private final String jdbcUrl;
+    private final Properties jdbcProperties = new Properties();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile boolean running;
+    private Thread writerThread;
+
+    // 仅由写入线程访问
+    private Connection connection;
+    // 从 spool 回放插入的会话标识 -> history_id，等对应的结束事件取走
+    private final Map<String, Long> replayedIds = new HashMap<>();
+
+    public ConnectionHistoryRecorder() {
+        String hostname = DynamicConnectionProperties.get(DynamicConnectionProperties.POSTGRESQL_HOSTNAME, null);
+        this.enabled = hostname != null
+                && DynamicConnectionProperties.get(DynamicConnectionProperties.HISTORY_ENABLED, true);
+
+        int queueSize = DynamicConnectionProperties.get(DynamicConnectionProperties.HISTORY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, DynamicConnectionProperties.get(DynamicConnectionProperties.HISTORY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.flushInterval = Math.max(100, DynamicConnectionProperties.get(DynamicConnectionProperties.HISTORY_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+
+        String spoolPath = DynamicConnectionProperties.get(DynamicConnectionProperties.HISTORY_SPOOL_FILE, null);
+        this.spoolFile = spoolPath != null ? new File(spoolPath)
+                : new File(LocalEnvironment.getInstance().getGuacamoleHome(), "dynamic-history.spool");
+
+        int port = DynamicConnectionProperties.get(DynamicConnectionProperties.POSTGRESQL_PORT, 5432);
+        String database = DynamicConnectionProperties.get(DynamicConnectionProperties.POSTGRESQL_DATABASE, "guacamole_db");
+        this.jdbcUrl = "jdbc:postgresql://" + hostname + ":" + port + "/" + database;
+        setIfPresent("user", DynamicConnectionProperties.get(DynamicConnectionProperties.POSTGRESQL_USERNAME, null));
+        setIfPresent("password", DynamicConnectionProperties.get(DynamicConnectionProperties.POSTGRESQL_PASSWORD, null));
+        jdbcProperties.setProperty("connectTimeout", String.valueOf(CONNECT_TIMEOUT_SECONDS));
+        jdbcProperties.setProperty("loginTimeout", String.valueOf(CONNECT_TIMEOUT_SECONDS));
+
+        if (!enabled) {
+            logger.info("ℹ️ Connection history recording disabled");
+            return;
+        }
+
+        try {
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            logger.warn("⚠️ PostgreSQL driver not found, history will be spooled to {}", spoolFile);
+        }
+
+        running = true;
+        writerThread = new Thread(this::runWriter, "dynamic-history-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("✅ Connection history recorder started: {} (batch={}, interval={}ms)", jdbcUrl, batchSize, flushInterval);
+    }
+
+    /**
+     * 包装隧道：打开时记录开始，关闭时记录结束。未启用时原样返回
+     */
+    public GuacamoleTunnel track(GuacamoleTunnel tunnel, String connectionName, String username, String remoteHost) {
+        if (!enabled) {
+            return tunnel;
+        }
+
+        final SessionRecord record = new SessionRecord(UUID.randomUUID().toString(), connectionName, username,
+                remoteHost, System.currentTimeMillis(), 0, 0);
+        enqueue(new HistoryEvent(false, record));
+
+        return new DelegatingGuacamoleTunnel(tunnel) {
+
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void close() throws GuacamoleException {
+                try {
+                    super.close();
+                } finally {
+                    if (closed.compareAndSet(false, true)) {
+                        record.endDate = System.currentTimeMillis();
+                        enqueue(new HistoryEvent(true, record));
+                    }
+                }
+            }
+        };
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * 停止写入线程，并尽量写完队列中剩余的事件
+     */
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writerThread.join(flushInterval + CONNECT_TIMEOUT_SECONDS * 2000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("🛑 Connection history recorder stopped ({} events dropped)", droppedEvents.get());
+    }
+
+    private void enqueue(HistoryEvent event) {
+        if (!queue.offer(event)) {
+            long dropped = droppedEvents.incrementAndGet();
+            if ((dropped & (dropped - 1)) == 0) {
+                logger.warn("⚠️ History queue full, {} events dropped so far", dropped);
+            }
+        }
+    }
+
+    private void runWriter() {
+        List<HistoryEvent> batch = new ArrayList<>(batchSize);
+        long deadline = System.currentTimeMillis() + flushInterval;
+
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = Math.max(1, deadline - System.currentTimeMillis());
+                HistoryEvent event = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    batch.add(event);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            if (batch.size() >= batchSize || System.currentTimeMillis() >= deadline || !running) {
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                    batch.clear();
+                }
+                deadline = System.currentTimeMillis() + flushInterval;
+            }
+        }
+
+        closeConnection();
+    }
+
+    private void flush(List<HistoryEvent> batch) {
+        List<SessionRecord> inserts = new ArrayList<>();
+        List<SessionRecord> updates = new ArrayList<>();
+        Set<SessionRecord> opened = Collections.newSetFromMap(new IdentityHashMap<SessionRecord, Boolean>());
+
+        for (HistoryEvent event : batch) {
+            if (!event.close) {
+                inserts.add(event.record);
+                opened.add(event.record);
+            } else if (!opened.contains(event.record)) {
+                // 同一批内已打开的会话，INSERT 时会直接带上 end_date
+                updates.add(event.record);
+            }
+        }
+
+        try {
+            Connection conn = getConnection();
+            replaySpool(conn);
+            resolveReplayed(updates);
+            write(conn, inserts, updates);
+            logger.debug("💾 Flushed {} history inserts and {} updates", inserts.size(), updates.size());
+        } catch (SQLException e) {
+            logger.warn("⚠️ History database unavailable, spooling {} events: {}", batch.size(), e.getMessage());
+            closeConnection();
+            spool(inserts, updates);
+        }
+    }
+
+    private void write(Connection conn, List<SessionRecord> inserts, List<SessionRecord> updates) throws SQLException {
+        if (inserts.isEmpty() && updates.isEmpty()) {
+            return;
+        }
+
+        long[] assignedIds = new long[0];
+        try {
+            if (!inserts.isEmpty()) {
+                try (PreparedStatement statement = conn.prepareStatement(INSERT_SQL, INSERT_KEYS)) {
+                    for (SessionRecord record : inserts) {
+                        long endDate = record.endDate;
+                        statement.setString(1, record.username);
+                        statement.setString(2, record.remoteHost);
+                        statement.setString(3, record.connectionName);
+                        statement.setTimestamp(4, new Timestamp(record.startDate));
+                        statement.setTimestamp(5, endDate != 0 ? new Timestamp(endDate) : null);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+
+                    long[] historyIds = new long[inserts.size()];
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        for (int i = 0; i < historyIds.length && keys.next(); i++) {
+                            historyIds[i] = keys.getLong(1);
+                        }
+                    }
+                    assignedIds = historyIds;
+                }
+            }
+
+            int orphaned = 0;
+            try (PreparedStatement statement = conn.prepareStatement(UPDATE_SQL)) {
+                int pending = 0;
+                for (SessionRecord record : updates) {
+                    if (record.historyId == 0) {
+                        orphaned++;
+                        continue;
+                    }
+                    statement.setTimestamp(1, new Timestamp(record.endDate));
+                    statement.setLong(2, record.historyId);
+                    statement.addBatch();
+                    pending++;
+                }
+                if (pending > 0) {
+                    statement.executeBatch();
+                }
+            }
+            if (orphaned > 0) {
+                logger.warn("⚠️ {} history end events have no matching history_id, skipped", orphaned);
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {
+                // 连接已不可用，交由上层关闭
+            }
+            throw e;
+        }
+
+        // 提交成功后才记下主键，回滚时记录保持未写入状态，随后整体落盘
+        for (int i = 0; i < assignedIds.length; i++) {
+            inserts.get(i).historyId = assignedIds[i];
+        }
+        for (SessionRecord record : updates) {
+            replayedIds.remove(record.sessionKey);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            connection = DriverManager.getConnection(jdbcUrl, jdbcProperties);
+            connection.setAutoCommit(false);
+        }
+        return connection;
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+                // 忽略
+            }
+            connection = null;
+        }
+    }
+
+    // ===== 本地 spool =====
+
+    private void spool(List<SessionRecord> inserts, List<SessionRecord> updates) {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(spoolFile, true), StandardCharsets.UTF_8))) {
+            for (SessionRecord record : inserts) {
+                writer.write(toSpoolLine("O", record));
+                writer.newLine();
+            }
+            for (SessionRecord record : updates) {
+                writer.write(toSpoolLine("C", record));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            logger.error("❌ Failed to spool {} history events to {}", inserts.size() + updates.size(), spoolFile, e);
+        }
+    }
+
+    /**
+     * 开始事件曾落盘、后由回放插入时，内存中的记录没有主键，从回放结果中取
+     */
+    private void resolveReplayed(List<SessionRecord> updates) {
+        for (SessionRecord record : updates) {
+            if (record.historyId == 0) {
+                Long historyId = replayedIds.get(record.sessionKey);
+                if (historyId != null) {
+                    record.historyId = historyId;
+                }
+            }
+        }
+    }
+
+    private void replaySpool(Connection conn) throws SQLException {
+        if (!spoolFile.isFile() || spoolFile.length() == 0) {
+            return;
+        }
+
+        List<SessionRecord> inserts = new ArrayList<>();
+        List<SessionRecord> updates = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(spoolFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 8) {
+                    continue;
+                }
+                SessionRecord record = new SessionRecord(fields[1], decode(fields[2]), decode(fields[3]),
+                        decode(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]));
+                ("O".equals(fields[0]) ? inserts : updates).add(record);
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.error("❌ Failed to read history spool {}, leaving it in place", spoolFile, e);
+            return;
+        }
+
+        // 同在 spool 中的开始与结束事件：结束事件沿用开始事件插入后的主键
+        Map<String, SessionRecord> opened = new HashMap<>();
+        List<SessionRecord> pendingUpdates = new ArrayList<>();
+        for (SessionRecord record : inserts) {
+            opened.put(record.sessionKey, record);
+        }
+        for (SessionRecord record : updates) {
+            SessionRecord open = opened.get(record.sessionKey);
+            if (open != null && record.historyId == 0) {
+                open.endDate = record.endDate;
+            } else {
+                pendingUpdates.add(record);
+            }
+        }
+
+        resolveReplayed(pendingUpdates);
+        write(conn, inserts, pendingUpdates);
+        for (SessionRecord record : inserts) {
+            if (record.endDate == 0) {
+                replayedIds.put(record.sessionKey, record.historyId);
+            }
+        }
+        if (!spoolFile.delete()) {
+            logger.warn("⚠️ Could not delete replayed history spool {}", spoolFile);
+        }
+        logger.info("✅ Replayed {} spooled history events", inserts.size() + updates.size());
+    }
+
+    private static String toSpoolLine(String type, SessionRecord record) {
+        return type + "\t" + record.sessionKey + "\t" + encode(record.connectionName) + "\t"
+                + encode(record.username) + "\t" + encode(record.remoteHost) + "\t"
+                + record.startDate + "\t" + record.endDate + "\t" + record.historyId;
+    }
+
+    private static String encode(String value) {
+        try {
+            return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return value.isEmpty() ? null : URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
+    private void setIfPresent(String key, String value) {
+        if (value != null) {
+            jdbcProperties.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 连接存储的本地日志
+ *
+ * 每次创建连接追加一条记录到内存映射的日志文件，后台线程把同一时间段内的记录合并后一次 force
+ * （group commit），登录线程只做入队。日志写满或到达压缩周期时把整个存储写成快照并清空日志。
+ * 启动时先读快照再重放日志，即可恢复重启前的连接。
+ *
+ * 记录格式：[int 长度][int CRC32][byte 类型][内容]，长度为 0 表示结尾。
+ * 配置了 GUACAMOLE_ENCRYPTION_KEY 时内容使用 AES-GCM 加密，避免凭据明文落盘；
+ * 加密密钥由该主密钥经 HKDF 派生，不直接复用令牌解密所用的密钥。
+ */
+public class ConnectionStoreJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionStoreJournal.class);
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_PUT_ENCRYPTED = 2;
+
+    private static final int HEADER_SIZE = 9;
+    private static final int NONCE_SIZE = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    /** HKDF 的 info 标签：日志密钥与令牌解密密钥由同一主密钥派生出不同用途的密钥 */
+    private static final byte[] KEY_LABEL = "guacamole-dynamic-connection/journal".getBytes(StandardCharsets.UTF_8);
+
+    private static class Entry {
+        final String connectionId;
+        final CompactConfiguration config;
+
+        Entry(String connectionId, CompactConfiguration config) {
+            this.connectionId = connectionId;
+            this.config = config;
+        }
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File lockFile;
+    private final int journalSize;
+    private final long commitInterval;
+    private final long compactInterval;
+    private final Map<String, CompactConfiguration> store;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKeySpec key;
+    // 旧版本直接用主密钥加密的记录，只用于恢复时读取，压缩后以派生密钥重写
+    private final SecretKeySpec legacyKey;
+
+    // 仅在恢复阶段和写入线程上使用，复用以避免每条记录都查找加密实现
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+
+    private RandomAccessFile lockHandle;
+    private FileLock lock;
+    private RandomAccessFile journalHandle;
+    private MappedByteBuffer journal;
+    private volatile boolean running;
+    private Thread writerThread;
+
+    public ConnectionStoreJournal(File directory, int journalSize, long commitInterval, long compactInterval,
+                                  Map<String, CompactConfiguration> store) {
+        this.snapshotFile = new File(directory, "connections.snapshot");
+        this.journalFile = new File(directory, "connections.journal");
+        this.lockFile = new File(directory, "journal.lock");
+        this.journalSize = journalSize;
+        this.commitInterval = commitInterval;
+        this.compactInterval = compactInterval;
+        this.store = store;
+        this.legacyKey = loadMasterKey();
+        this.key = legacyKey != null ? deriveKey(legacyKey) : null;
+    }
+
+    /**
+     * 打开日志并恢复存储，失败时返回 false（扩展继续以纯内存方式运行）
+     */
+    public boolean open() {
+        try {
+            File directory = snapshotFile.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create journal directory " + directory);
+            }
+
+            lockHandle = new RandomAccessFile(lockFile, "rw");
+            lock = lockHandle.getChannel().tryLock();
+            if (lock == null) {
+                throw new IOException("Journal is locked by another process");
+            }
+
+            long start = System.nanoTime();
+            int fromSnapshot = readSnapshot();
+
+            journalHandle = new RandomAccessFile(journalFile, "rw");
+            journal = journalHandle.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, journalSize);
+            int fromJournal = replayJournal();
+
+            logger.info("✅ Restored {} dynamic connections ({} from snapshot, {} journal records) in {} ms",
+                    store.size(), fromSnapshot, fromJournal, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | OverlappingFileLockException e) {
+            logger.error("❌ Connection journal unavailable, store will not survive restarts: {}", e.getMessage());
+            close();
+            return false;
+        }
+
+        running = true;
+        writerThread = new Thread(this::runWriter, "dynamic-journal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        return true;
+    }
+
+    /**
+     * 记录一次存储变更，只入队不等待落盘
+     */
+    public void append(String connectionId, CompactConfiguration config) {
+        if (running) {
+            queue.offer(new Entry(connectionId, config));
+        }
+    }
+
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    private void runWriter() {
+        // 启动后先压缩一次，得到干净的快照和空日志
+        compact();
+        long nextCompaction = System.currentTimeMillis() + compactInterval;
+        List<Entry> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(commitInterval, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                logger.error("❌ Failed to write connection journal", e);
+                batch.clear();
+            }
+
+            if (System.currentTimeMillis() >= nextCompaction) {
+                compact();
+                nextCompaction = System.currentTimeMillis() + compactInterval;
+            }
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) {
+        for (Entry entry : batch) {
+            byte[] record = encodeRecord(entry.connectionId, entry.config);
+            if (record == null) {
+                continue;
+            }
+            if (journal.remaining() < record.length + 4) {
+                compact();
+                if (journal.remaining() < record.length + 4) {
+                    logger.error("❌ Journal record for {} exceeds journal size", entry.connectionId);
+                    continue;
+                }
+            }
+            journal.put(record);
+        }
+
+        // 结尾标记不推进位置，下一批会覆盖它
+        journal.putInt(journal.position(), 0);
+        journal.force();
+    }
+
+    /**
+     * 把当前存储写成快照，然后清空日志
+     */
+    private void compact() {
+        long start = System.nanoTime();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        int count = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            for (Map.Entry<String, CompactConfiguration> entry : store.entrySet()) {
+                byte[] record = encodeRecord(entry.getKey(), entry.getValue());
+                if (record != null) {
+                    out.write(record);
+                    count++;
+                }
+            }
+            out.writeInt(0);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            logger.error("❌ Failed to write connection snapshot", e);
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("❌ Failed to replace connection snapshot", e);
+            return;
+        }
+
+        journal.position(0);
+        journal.putInt(0, 0);
+        journal.force();
+        logger.info("🗜️ Compacted connection journal: {} connections in {} ms",
+                count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private int readSnapshot() throws IOException {
+        if (!snapshotFile.isFile()) {
+            return 0;
+        }
+
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                int crc = in.readInt();
+                byte[] body = new byte[length];
+                in.readFully(body);
+                if (!decodeRecord(body, crc)) {
+                    logger.warn("⚠️ Corrupt record in connection snapshot, stopping at {} entries", count);
+                    break;
+                }
+                count++;
+            }
+        } catch (EOFException e) {
+            logger.warn("⚠️ Connection snapshot truncated after {} entries", count);
+        }
+        return count;
+    }
+
+    private int replayJournal() {
+        int count = 0;
+        journal.position(0);
+        while (journal.remaining() >= HEADER_SIZE) {
+            int length = journal.getInt(journal.position());
+            if (length <= 0 || length > journal.remaining() - 8) {
+                break;
+            }
+            journal.getInt();
+            int crc = journal.getInt();
+            byte[] body = new byte[length];
+            journal.get(body);
+            if (!decodeRecord(body, crc)) {
+                // 崩溃时未写完的记录
+                journal.position(journal.position() - length - 8);
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private byte[] encodeRecord(String connectionId, CompactConfiguration config) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(buffer);
+            GuacamoleConfiguration configuration = config.toConfiguration();
+            out.writeUTF(connectionId);
+            out.writeUTF(configuration.getProtocol());
+            Map<String, String> parameters = configuration.getParameters();
+            out.writeShort(parameters.size());
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                out.writeUTF(parameter.getKey());
+                out.writeUTF(parameter.getValue());
+            }
+            byte[] payload = buffer.toByteArray();
+
+            byte type = TYPE_PUT;
+            if (key != null) {
+                type = TYPE_PUT_ENCRYPTED;
+                payload = encrypt(payload);
+            }
+
+            byte[] body = new byte[1 + payload.length];
+            body[0] = type;
+            System.arraycopy(payload, 0, body, 1, payload.length);
+
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 8);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeInt(body.length);
+            recordOut.writeInt((int) crc.getValue());
+            recordOut.write(body);
+            return record.toByteArray();
+        } catch (IOException | GeneralSecurityException e) {
+            logger.error("❌ Failed to encode journal record for {}", connectionId, e);
+            return null;
+        }
+    }
+
+    private boolean decodeRecord(byte[] body, int expectedCrc) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        if ((int) crc.getValue() != expectedCrc || body.length < 1) {
+            return false;
+        }
+
+        try {
+            byte[] payload = new byte[body.length - 1];
+            System.arraycopy(body, 1, payload, 0, payload.length);
+            if (body[0] == TYPE_PUT_ENCRYPTED) {
+                if (key == null) {
+                    logger.warn("⚠️ Encrypted journal record found but no encryption key is configured");
+                    return true;
+                }
+                payload = decrypt(payload);
+            } else if (body[0] != TYPE_PUT) {
+                return false;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            String connectionId = in.readUTF();
+            GuacamoleConfiguration config = new GuacamoleConfiguration();
+            config.setProtocol(in.readUTF());
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                config.setParameter(in.readUTF(), in.readUTF());
+            }
+            store.put(connectionId, CompactConfiguration.of(config));
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            logger.warn("⚠️ Skipping unreadable journal record: {}", e.getMessage());
+            return true;
+        }
+    }
+
+    private byte[] encrypt(byte[] plain) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        if (encryptCipher == null) {
+            encryptCipher = Cipher.getInstance(ALGORITHM);
+        }
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+        byte[] encrypted = encryptCipher.doFinal(plain);
+        byte[] result = new byte[NONCE_SIZE + encrypted.length];
+        System.arraycopy(nonce, 0, result, 0, NONCE_SIZE);
+        System.arraycopy(encrypted, 0, result, NONCE_SIZE, encrypted.length);
+        return result;
+    }
+
+    private byte[] decrypt(byte[] data) throws GeneralSecurityException {
+        if (data.length < NONCE_SIZE) {
+            throw new GeneralSecurityException("Encrypted record too short");
+        }
+        if (decryptCipher == null) {
+            decryptCipher = Cipher.getInstance(ALGORITHM);
+        }
+        try {
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, data, 0, NONCE_SIZE));
+            return decryptCipher.doFinal(data, NONCE_SIZE, data.length - NONCE_SIZE);
+        } catch (GeneralSecurityException e) {
+            decryptCipher.init(Cipher.DECRYPT_MODE, legacyKey, new GCMParameterSpec(GCM_TAG_LENGTH, data, 0, NONCE_SIZE));
+            return decryptCipher.doFinal(data, NONCE_SIZE, data.length - NONCE_SIZE);
+        }
+    }
+
+    private static SecretKeySpec loadMasterKey() {
+        try {
+            return new SecretKeySpec(DynamicConnectionAuthenticationProvider.getEncryptionKey()
+                    .getBytes(StandardCharsets.UTF_8), "AES");
+        } catch (RuntimeException e) {
+            logger.warn("⚠️ No encryption key, connection journal will be stored unencrypted");
+            return null;
+        }
+    }
+
+    /**
+     * HKDF-SHA256（RFC 5869，盐为空）从主密钥派生 32 字节的日志密钥，不与令牌解密共用同一个 AES 密钥
+     */
+    static SecretKeySpec deriveKey(SecretKeySpec master) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+            byte[] prk = mac.doFinal(master.getEncoded());
+
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(KEY_LABEL);
+            mac.update((byte) 1);
+            return new SecretKeySpec(mac.doFinal(), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private void close() {
+        try {
+            if (journalHandle != null) {
+                journalHandle.close();
+            }
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockHandle != null) {
+                lockHandle.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Error closing connection journal", e);
+        }
+    }
+}
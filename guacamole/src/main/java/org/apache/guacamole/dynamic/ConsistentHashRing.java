@@ -0,0 +1,73 @@
+package org.apache.guacamole.dynamic;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 带虚拟节点的一致性哈希环（不可变，成员变化时整体重建）
+ *
+ * 每个节点在环上放置 virtualNodes 个点，键落到顺时针方向的第一个点所属节点。
+ * 节点加入只接管约 1/N 的键，节点离开只重新分配它原有的键，其余键的归属不变。
+ */
+final class ConsistentHashRing {
+
+    private final long[] points;
+    private final String[] owners;
+
+    ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        // 按名称顺序放置，哈希冲突时的归属与成员列表的顺序无关
+        Map<Long, String> ring = new TreeMap<>();
+        for (String node : new TreeSet<>(nodes)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.putIfAbsent(hash(node + "#" + i), node);
+            }
+        }
+
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            owners[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * 键所属的节点，环为空时返回 null
+     */
+    String route(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * FNV-1a 加 MurmurHash3 的 64 位收尾混合，相近的键（node#1、node#2）也能均匀散开
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -13,6 +13,7 @@ public class DynamicAuthenticatedUser implements AuthenticatedUser {
     private final AuthenticationProvider authProvider;
     private String identifier = "dynamic-user";
     private DynamicConnectionAuthenticationProvider.ConnectionData connectionData;
+    private LoginTracer.Trace loginTrace;
 
     public DynamicAuthenticatedUser(Credentials credentials, AuthenticationProvider authProvider) {
         this.credentials = credentials;
@@ -60,6 +61,15 @@ public class DynamicAuthenticatedUser implements AuthenticatedUser {
         return connectionData;
     }
     
+    // 本次登录的耗时追踪，未被采样时为 null
+    public LoginTracer.Trace getLoginTrace() {
+        return loginTrace;
+    }
+    
+    public void setLoginTrace(LoginTracer.Trace loginTrace) {
+        this.loginTrace = loginTrace;
+    }
+    
     @Override
     public boolean equals(Object obj) {
         return obj instanceof DynamicAuthenticatedUser;
@@ -0,0 +1,143 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUpstreamException;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.AbstractConnectionGroup;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 多主机 token 对应的负载均衡组
+ *
+ * 每个候选主机是组内的一个动态连接。连接时按以下顺序尝试：
+ * 已知不可达的主机排在最后，其余按本节点活动会话数从少到多，会话数相同随机打散；
+ * 某个主机连接失败（上游错误）时切换到下一个。成员的 guacd 连接包装为 FailoverGuacamoleSocket，
+ * 握手后、第一个 sync 之前目标通过 error 指令报告的失败（拒绝连接、认证失败等）同样会切换。
+ */
+public class DynamicBalancingGroup extends AbstractConnectionGroup {
+
+    private static final Logger logger = LoggerFactory.getLogger(DynamicBalancingGroup.class);
+
+    private final List<DynamicConnection> members;
+    private final DynamicConnectionService dynamicService;
+
+    public DynamicBalancingGroup(String identifier, List<DynamicConnection> members,
+                                 DynamicConnectionService dynamicService) {
+        this.members = members;
+        this.dynamicService = dynamicService;
+        setIdentifier(identifier);
+        setName("Dynamic - " + (members.isEmpty() ? "empty" : members.get(0).getConfiguration().getProtocol().toUpperCase())
+                + " pool (" + members.size() + " hosts)");
+        setParentIdentifier("ROOT");
+        setType(Type.BALANCING);
+        for (DynamicConnection member : members) {
+            member.setParentIdentifier(identifier);
+        }
+    }
+
+    @Override
+    public Set<String> getConnectionIdentifiers() {
+        Set<String> identifiers = new LinkedHashSet<>();
+        for (DynamicConnection member : members) {
+            identifiers.add(member.getIdentifier());
+        }
+        return identifiers;
+    }
+
+    @Override
+    public Set<String> getConnectionGroupIdentifiers() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        HostLoadTracker tracker = dynamicService.getLoadTracker();
+        int active = 0;
+        for (DynamicConnection member : members) {
+            active += tracker.getActiveSessions(member.getHostname(), member.getPort());
+        }
+        return active;
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void setAttributes(Map<String, String> attributes) {
+        // 不支持属性
+    }
+
+    @Override
+    public GuacamoleTunnel connect(GuacamoleClientInformation info, Map<String, String> tokens)
+            throws GuacamoleException {
+        if (members.isEmpty()) {
+            throw new GuacamoleUpstreamException("Balancing group has no hosts: " + getIdentifier());
+        }
+
+        GuacamoleException lastError = null;
+        for (DynamicConnection member : orderCandidates()) {
+            try {
+                GuacamoleTunnel tunnel = member.connect(info, tokens, true);
+                logger.info("⚖️ Group {} connected to {}:{}", getIdentifier(), member.getHostname(), member.getPort());
+                return tunnel;
+            } catch (GuacamoleUpstreamException e) {
+                // 目标不可用，换下一台；guacd 本身的错误换主机也无济于事，直接抛出
+                logger.warn("⚠️ Group {} failed on {}:{}, trying next host: {}",
+                        getIdentifier(), member.getHostname(), member.getPort(), e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private List<DynamicConnection> orderCandidates() {
+        final TargetReachabilityCache reachability = dynamicService.getReachabilityCache();
+        final HostLoadTracker tracker = dynamicService.getLoadTracker();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        List<Candidate> candidates = new ArrayList<>(members.size());
+        for (DynamicConnection member : members) {
+            candidates.add(new Candidate(member,
+                    reachability.isKnownUnreachable(member.getHostname(), member.getPort()),
+                    tracker.getActiveSessions(member.getHostname(), member.getPort()),
+                    random.nextInt()));
+        }
+        candidates.sort(Comparator.<Candidate>comparingInt(c -> c.unreachable ? 1 : 0)
+                .thenComparingInt(c -> c.activeSessions)
+                .thenComparingInt(c -> c.tieBreak));
+
+        List<DynamicConnection> ordered = new ArrayList<>(candidates.size());
+        for (Candidate candidate : candidates) {
+            ordered.add(candidate.connection);
+        }
+        return ordered;
+    }
+
+    // 排序时的快照，避免比较过程中计数变化
+    private static class Candidate {
+        final DynamicConnection connection;
+        final boolean unreachable;
+        final int activeSessions;
+        final int tieBreak;
+
+        Candidate(DynamicConnection connection, boolean unreachable, int activeSessions, int tieBreak) {
+            this.connection = connection;
+            this.unreachable = unreachable;
+            this.activeSessions = activeSessions;
+            this.tieBreak = tieBreak;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.net.auth.AuthenticatedUser;
+import org.apache.guacamole.net.auth.simple.SimpleConnection;
+import org.apache.guacamole.protocol.FailoverGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.apache.guacamole.token.TokenFilter;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 动态连接：在 SimpleConnection 的基础上接入扩展自身的隧道处理（历史记录、主机负载统计等）
+ */
+public class DynamicConnection extends SimpleConnection {
+
+    private final DynamicConnectionService dynamicService;
+    private final AuthenticatedUser authenticatedUser;
+
+    public DynamicConnection(String identifier, GuacamoleConfiguration config,
+                             DynamicConnectionService dynamicService, AuthenticatedUser authenticatedUser) {
+        super(identifier, identifier, config, true);
+        this.dynamicService = dynamicService;
+        this.authenticatedUser = authenticatedUser;
+        setName("Dynamic - " + config.getProtocol().toUpperCase() + " to " + config.getParameter("hostname"));
+        setParentIdentifier("ROOT");
+    }
+
+    public String getHostname() {
+        return getConfiguration().getParameter("hostname");
+    }
+
+    public int getPort() {
+        try {
+            return Integer.parseInt(getConfiguration().getParameter("port"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 与 SimpleConnection.connect 相同，但 guacd 连接与协议握手分开计时。
+     * failover 时与 JDBC 负载均衡组一样用 FailoverGuacamoleSocket 等到第一个 sync，
+     * 目标在此之前通过 error 指令报告的上游错误会作为 GuacamoleUpstreamException 抛出
+     */
+    private GuacamoleTunnel openTunnel(GuacamoleClientInformation info, Map<String, String> tokens,
+                                       LoginTracer tracer, LoginTracer.Trace trace, boolean failover)
+            throws GuacamoleException {
+        GuacamoleConfiguration config = new GuacamoleConfiguration(getFullConfiguration());
+        dynamicService.getStreamTransfers().applyProfile(config);
+        new TokenFilter(tokens != null ? tokens : Collections.<String, String>emptyMap())
+                .filterValues(config.getParameters());
+        
+        long phaseStart = LoginTracer.now();
+        GuacamoleSocket socket = GuacdConnector.openSocket();
+        tracer.record(trace, LoginTracer.Phase.GUACD_CONNECT, phaseStart);
+        
+        phaseStart = LoginTracer.now();
+        GuacamoleSocket configured = GuacdConnector.handshake(socket, config, info);
+        tracer.record(trace, LoginTracer.Phase.HANDSHAKE, phaseStart);
+        if (failover) {
+            try {
+                configured = new FailoverGuacamoleSocket(configured);
+            } catch (GuacamoleException e) {
+                configured.close();
+                throw e;
+            }
+        }
+        return new SimpleGuacamoleTunnel(configured);
+    }
+
+    @Override
+    public GuacamoleTunnel connect(GuacamoleClientInformation info, Map<String, String> tokens)
+            throws GuacamoleException {
+        return connect(info, tokens, false);
+    }
+
+    /**
+     * 作为负载均衡组成员连接时 failover 为 true，目标的上游错误在返回隧道前抛出，由组切换到下一台主机
+     */
+    GuacamoleTunnel connect(GuacamoleClientInformation info, Map<String, String> tokens, boolean failover)
+            throws GuacamoleException {
+        LoginTracer tracer = dynamicService.getLoginTracer();
+        LoginTracer.Trace trace = tracer.find(getIdentifier());
+        
+        // 宽限期内的重连直接加入仍在运行的 guacd 会话
+        ReconnectGraceManager grace = dynamicService.getReconnectGrace();
+        GuacamoleTunnel tunnel = grace.resume(getIdentifier(), info);
+        String path = tunnel != null ? "rejoin" : "connection";
+        if (tunnel == null) {
+            dynamicService.getReachabilityCache().awaitReachable(getConfiguration());
+            tunnel = openTunnel(info, tokens, tracer, trace, failover);
+        }
+        tunnel = grace.track(getIdentifier(), tunnel);
+        // 在传输截获之内扣费，经扩展接口下载的 blob 同样计入会话带宽
+        tunnel = dynamicService.getBandwidthScheduler().track(tunnel, getConfiguration());
+        tunnel = dynamicService.getStreamTransfers().track(tunnel, authenticatedUser);
+        tunnel = ExtensionEvents.trackTunnel(tunnel, getIdentifier(), getConfiguration().getProtocol(), path);
+        tunnel = tracer.watchFirstSync(trace, getIdentifier(), tunnel);
+        tunnel = dynamicService.getLoadTracker().track(tunnel, getHostname(), getPort());
+        tunnel = dynamicService.getHistoryRecorder().track(tunnel, getName(),
+                authenticatedUser.getIdentifier(), authenticatedUser.getCredentials().getRemoteAddress());
+        // 最外层包装，端点看到的 available() 由它决定何时发送
+        return dynamicService.getCoalescer().track(tunnel);
+    }
+}
@@ -12,7 +12,10 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -32,7 +35,7 @@ public class DynamicConnectionAuthenticationProvider extends AbstractAuthenticat
     private static final String ENCRYPTION_KEY_ENV = "GUACAMOLE_ENCRYPTION_KEY"; // 环境变量名
     
     // 加密密钥（从环境变量获取）
-    private String getEncryptionKey() {
+    static String getEncryptionKey() {
         String key = System.getenv(ENCRYPTION_KEY_ENV);
         if (key == null || key.trim().isEmpty()) {
             logger.error("❌ Encryption key not found in environment variable: {}", ENCRYPTION_KEY_ENV);
@@ -50,6 +53,15 @@ public class DynamicConnectionAuthenticationProvider extends AbstractAuthenticat
         return key;
     }
 
+    public DynamicConnectionAuthenticationProvider() {
+        // 从本地日志恢复重启前创建的连接
+        dynamicService.openJournal();
+        if (DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_VIRTUAL_THREADS, false)) {
+            logger.warn("⚠️ dynamic-tunnel-virtual-threads only applies to DynamicConnectionServlet; "
+                    + "the webapp's /tunnel and /websocket-tunnel keep using their own threads");
+        }
+    }
+
     @Override
     public String getIdentifier() {
         return "dynamic-connection";
@@ -80,19 +92,34 @@ public class DynamicConnectionAuthenticationProvider extends AbstractAuthenticat
      * 处理token认证
      */
     private AuthenticatedUser handleTokenAuthentication(String token, Credentials credentials, HttpServletRequest request) {
+        LoginTracer tracer = dynamicService.getLoginTracer();
+        LoginTracer.Trace trace = tracer.start();
+        Object event = ExtensionEvents.beginTokenAuthentication();
+        String protocol = null;
         try {
             // 解密token
+            long phaseStart = LoginTracer.now();
             String decryptedJson = decryptGCM(token);
+            tracer.record(trace, LoginTracer.Phase.TOKEN_DECRYPT, phaseStart);
             logger.info("✅ Token decrypted successfully", decryptedJson);
             
             // 解析JSON数据
+            phaseStart = LoginTracer.now();
             ConnectionData connData = objectMapper.readValue(decryptedJson, ConnectionData.class);
+            tracer.record(trace, LoginTracer.Phase.JSON_PARSE, phaseStart);
+            protocol = connData.protocol;
             logger.info("✅ JSON parsed: {}://{}:{}", connData.protocol, connData.hostname, connData.port);
             
+            // 异步探测目标可达性，结果在建立 guacd 连接前使用
+            for (String hostname : connData.getCandidateHosts()) {
+                dynamicService.getReachabilityCache().probeAsync(hostname, connData.port);
+            }
+            
             // 检查是否已经重定向过
             String redirected = request.getParameter("_redirected");
             if (!"true".equals(redirected)) {
-                if (attemptCleanRedirectFromToken(credentials, connData, request)) {
+                if (attemptCleanRedirectFromToken(credentials, connData, request, trace)) {
+                    ExtensionEvents.endTokenAuthentication(event, "token", protocol, "redirected");
                     return null;
                 }
             }
@@ -101,10 +128,14 @@ public class DynamicConnectionAuthenticationProvider extends AbstractAuthenticat
                        connData.protocol, connData.hostname, connData.port);
             
             // 🔥 关键修改：传递连接数据到AuthenticatedUser
-            return new DynamicAuthenticatedUser(credentials, this, connData);
+            DynamicAuthenticatedUser user = new DynamicAuthenticatedUser(credentials, this, connData);
+            user.setLoginTrace(trace);
+            ExtensionEvents.endTokenAuthentication(event, "token", protocol, "authenticated");
+            return user;
             
         } catch (Exception e) {
             logger.error("❌ Token authentication failed: {}", e.getMessage(), e);
+            ExtensionEvents.endTokenAuthentication(event, "token", protocol, "failed");
             return null;
         }
     }
@@ -115,6 +146,7 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
     logger.info("Legacy parameters - protocol: '{}', hostname: '{}'", protocol, hostname);
     
     if (protocol != null && hostname != null) {
+        Object event = ExtensionEvents.beginTokenAuthentication();
         logger.info("✅✅✅ DYNAMIC CONNECTION AUTHENTICATED: {}://{} ✅✅✅", protocol, hostname);
         
         // 🔥 关键修改：正确处理端口参数的类型转换
@@ -139,14 +171,18 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
         connData.password = request.getParameter("password");
         connData.timestamp = System.currentTimeMillis();
         
+        dynamicService.getReachabilityCache().probeAsync(connData.hostname, connData.port);
+        
         String redirected = request.getParameter("_redirected");
         if (!"true".equals(redirected)) {
             if (attemptCleanRedirect(credentials, protocol, hostname, request)) {
+                ExtensionEvents.endTokenAuthentication(event, "legacy", protocol, "redirected");
                 return null;
             }
         }
         
         // 🔥 关键修改：传递连接数据到AuthenticatedUser
+        ExtensionEvents.endTokenAuthentication(event, "legacy", protocol, "authenticated");
         return new DynamicAuthenticatedUser(credentials, this, connData);
     }
     
@@ -158,6 +194,7 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
      * AES-GCM解密
      */
     private String decryptGCM(String ciphertext) throws Exception {
+        Object event = ExtensionEvents.beginDecryption();
         try {
             // 从环境变量获取密钥
             String encryptionKey = getEncryptionKey();
@@ -186,9 +223,11 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
             
             // 解密
             byte[] decrypted = cipher.doFinal(ciphertextBytes);
+            ExtensionEvents.endDecryption(event, ciphertext.length(), "success");
             return new String(decrypted, StandardCharsets.UTF_8);
             
         } catch (Exception e) {
+            ExtensionEvents.endDecryption(event, ciphertext.length(), "failed");
             logger.error("Decryption failed for token: {}", ciphertext);
             throw new RuntimeException("Token decryption failed", e);
         }
@@ -197,27 +236,46 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
     /**
      * 基于token数据的重定向
      */
-    private boolean attemptCleanRedirectFromToken(Credentials credentials, ConnectionData connData, HttpServletRequest request) {
+    private boolean attemptCleanRedirectFromToken(Credentials credentials, ConnectionData connData, HttpServletRequest request,
+                                                  LoginTracer.Trace trace) {
         try {
-            GuacamoleConfiguration config = new GuacamoleConfiguration();
-            config.setProtocol(connData.protocol);
-            config.setParameter("hostname", connData.hostname);
-            config.setParameter("port", String.valueOf(connData.port));
-            
-            if (connData.username != null) 
-                config.setParameter("username", connData.username);
-            if (connData.password != null) 
-                config.setParameter("password", connData.password);
+            long phaseStart = LoginTracer.now();
+            List<String> connectionIds = new ArrayList<>();
+            for (String hostname : connData.getCandidateHosts()) {
+                GuacamoleConfiguration config = new GuacamoleConfiguration();
+                config.setProtocol(connData.protocol);
+                config.setParameter("hostname", hostname);
+                config.setParameter("port", String.valueOf(connData.port));
+                
+                if (connData.username != null) 
+                    config.setParameter("username", connData.username);
+                if (connData.password != null) 
+                    config.setParameter("password", connData.password);
+                if (connData.bandwidthLimit != null)
+                    config.setParameter(TunnelBandwidthScheduler.LIMIT_PARAMETER, String.valueOf(connData.bandwidthLimit));
 
-            String connectionId = dynamicService.createDynamicConnection(config);
+                connectionIds.add(dynamicService.createDynamicConnection(config));
+            }
+
+            // 多个候选主机时跳转到负载均衡组，客户端标识需按 id\0类型\0数据源 编码
+            String clientId = connectionIds.get(0);
+            if (connectionIds.size() > 1) {
+                String groupId = dynamicService.createBalancingGroup(connectionIds);
+                clientId = Base64.getEncoder().encodeToString(
+                        (groupId + "\0g\0" + getIdentifier()).getBytes(StandardCharsets.UTF_8));
+            }
             String contextPath = request.getContextPath();
-            String cleanUrl = contextPath + "/#/client/" + connectionId + "?_redirected=true";
+            String cleanUrl = contextPath + "/#/client/" + clientId + "?_redirected=true";
             
             logger.info("🔗 Redirecting to clean URL: {}", cleanUrl);
             
             HttpServletResponse response = getHttpResponse(credentials);
             if (response != null) {
                 response.sendRedirect(cleanUrl);
+                // 重定向后的请求按连接 ID 继续同一个追踪
+                LoginTracer tracer = dynamicService.getLoginTracer();
+                tracer.record(trace, LoginTracer.Phase.REDIRECT, phaseStart);
+                tracer.attach(trace, connectionIds);
                 return true;
             }
             
@@ -264,9 +322,11 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
     public static class ConnectionData {
         public String protocol;
         public String hostname;
+        public List<String> hostnames;  // 可选：同构主机池，按负载选择并故障切换
         public int port;
         public String username;
         public String password;
+        public Integer bandwidthLimit;  // 可选：会话出口限速（KB/s），覆盖协议默认值
         public long timestamp;
         
         // getters/setters
@@ -274,14 +334,34 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
         public void setProtocol(String protocol) { this.protocol = protocol; }
         public String getHostname() { return hostname; }
         public void setHostname(String hostname) { this.hostname = hostname; }
+        public List<String> getHostnames() { return hostnames; }
+        public void setHostnames(List<String> hostnames) { this.hostnames = hostnames; }
         public int getPort() { return port; }
         public void setPort(int port) { this.port = port; }
         public String getUsername() { return username; }
         public void setUsername(String username) { this.username = username; }
         public String getPassword() { return password; }
         public void setPassword(String password) { this.password = password; }
+        public Integer getBandwidthLimit() { return bandwidthLimit; }
+        public void setBandwidthLimit(Integer bandwidthLimit) { this.bandwidthLimit = bandwidthLimit; }
         public long getTimestamp() { return timestamp; }
         public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+        
+        // 候选主机：优先使用 hostnames，否则只有 hostname 一个
+        public List<String> getCandidateHosts() {
+            List<String> hosts = new ArrayList<>();
+            if (hostnames != null) {
+                for (String host : hostnames) {
+                    if (host != null && !host.trim().isEmpty() && !hosts.contains(host.trim())) {
+                        hosts.add(host.trim());
+                    }
+                }
+            }
+            if (hosts.isEmpty() && hostname != null) {
+                return Collections.singletonList(hostname);
+            }
+            return hosts;
+        }
     }
 
     private HttpServletResponse getHttpResponse(Credentials credentials) {
@@ -316,7 +396,12 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
             if (connData != null) {
                 logger.info("✅ Using connection data from authenticated user: {}://{}", 
                            connData.protocol, connData.hostname);
-                return new DynamicUserContext(authenticatedUser, dynamicService, connData);
+                long phaseStart = LoginTracer.now();
+                DynamicUserContext context = new DynamicUserContext(authenticatedUser, dynamicService, connData);
+                LoginTracer tracer = dynamicService.getLoginTracer();
+                tracer.record(dynamicUser.getLoginTrace(), LoginTracer.Phase.USER_CONTEXT, phaseStart);
+                tracer.attach(dynamicUser.getLoginTrace(), context.getDynamicConnectionIds());
+                return context;
             }
         }
         
@@ -324,4 +409,9 @@ private AuthenticatedUser handleLegacyAuthentication(Credentials credentials, Ht
         logger.info("ℹ️ No connection data found, using legacy parameter method");
         return new DynamicUserContext(authenticatedUser, dynamicService);
     }
+
+    @Override
+    public void shutdown() {
+        dynamicService.shutdown();
+    }
 }
\ No newline at end of file
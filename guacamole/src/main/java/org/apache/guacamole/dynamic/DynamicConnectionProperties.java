@@ -0,0 +1,375 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.apache.guacamole.properties.StringGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 动态连接扩展使用的 guacamole.properties 配置项
+ */
+public final class DynamicConnectionProperties {
+
+    private static final Logger logger = LoggerFactory.getLogger(DynamicConnectionProperties.class);
+
+    private DynamicConnectionProperties() {
+    }
+
+    // ===== PostgreSQL（与 guacamole-auth-jdbc 共用同一组配置） =====
+
+    public static final StringGuacamoleProperty POSTGRESQL_HOSTNAME = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "postgresql-hostname"; }
+    };
+
+    public static final IntegerGuacamoleProperty POSTGRESQL_PORT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "postgresql-port"; }
+    };
+
+    public static final StringGuacamoleProperty POSTGRESQL_DATABASE = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "postgresql-database"; }
+    };
+
+    public static final StringGuacamoleProperty POSTGRESQL_USERNAME = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "postgresql-username"; }
+    };
+
+    public static final StringGuacamoleProperty POSTGRESQL_PASSWORD = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "postgresql-password"; }
+    };
+
+    // ===== 连接历史记录 =====
+
+    /** 是否把动态连接的打开/关闭写入 guacamole_connection_history */
+    public static final BooleanGuacamoleProperty HISTORY_ENABLED = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-history-enabled"; }
+    };
+
+    /** 内存队列容量，队列满时丢弃事件而不是阻塞隧道线程 */
+    public static final IntegerGuacamoleProperty HISTORY_QUEUE_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-history-queue-size"; }
+    };
+
+    /** 单次 JDBC 批量写入的最大记录数 */
+    public static final IntegerGuacamoleProperty HISTORY_BATCH_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-history-batch-size"; }
+    };
+
+    /** 未攒满一批时的最长等待时间（毫秒） */
+    public static final IntegerGuacamoleProperty HISTORY_FLUSH_INTERVAL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-history-flush-interval"; }
+    };
+
+    /** 数据库不可用时的本地落盘文件 */
+    public static final StringGuacamoleProperty HISTORY_SPOOL_FILE = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-history-spool-file"; }
+    };
+
+    // ===== 隧道读流 =====
+
+    /**
+     * 是否按 Accept-Encoding 对 HTTP 隧道读流做 gzip/deflate 压缩；只作用于 DynamicConnectionServlet，
+     * Web 应用自带的 /tunnel、/websocket-tunnel 的压缩由 Tomcat 负责
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_COMPRESSION = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-tunnel-compression"; }
+    };
+
+    /** 单次发送前最多合并的指令字符数，作用于动态连接的所有隧道（TunnelCoalescer） */
+    public static final IntegerGuacamoleProperty TUNNEL_COALESCE_BYTES = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-tunnel-coalesce-bytes"; }
+    };
+
+    /** 连续有数据可读时合并的最长时间（毫秒），reader 没有后续数据时总是立即发送 */
+    public static final IntegerGuacamoleProperty TUNNEL_COALESCE_DELAY = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-tunnel-coalesce-delay"; }
+    };
+
+    /** 不超过该字符数的一批指令视为交互帧，带宽调度时优先放行（WebSocket 与 HTTP 隧道都适用） */
+    public static final IntegerGuacamoleProperty TUNNEL_INTERACTIVE_THRESHOLD = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-tunnel-interactive-threshold"; }
+    };
+
+    /**
+     * Java 21 运行时下是否把隧道读写放到虚拟线程上；只作用于 DynamicConnectionServlet，
+     * Web 应用自带的 /tunnel 使用容器线程、/websocket-tunnel 每个隧道一个读线程，不受影响
+     */
+    public static final BooleanGuacamoleProperty TUNNEL_VIRTUAL_THREADS = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-tunnel-virtual-threads"; }
+    };
+
+    /** 同时在虚拟线程上执行的隧道读写上限，超出部分回到容器线程（只作用于 DynamicConnectionServlet） */
+    public static final IntegerGuacamoleProperty TUNNEL_IO_MAX_CONCURRENT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-tunnel-io-max-concurrent"; }
+    };
+
+    // ===== 隧道出口带宽调度 =====
+
+    /** 是否启用隧道出口带宽调度（节点预算 + 会话加权公平 + 交互帧优先），在动态连接隧道的读取层进行 */
+    public static final BooleanGuacamoleProperty BANDWIDTH_ENABLED = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-bandwidth-enabled"; }
+    };
+
+    /** 节点出口总预算（KB/s），0 表示不限，只执行会话级限速 */
+    public static final IntegerGuacamoleProperty BANDWIDTH_NODE_LIMIT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-bandwidth-node-limit"; }
+    };
+
+    /** 会话默认限速（KB/s），0 表示不限；可按协议覆盖，token 中的 bandwidthLimit 优先 */
+    public static final IntegerGuacamoleProperty BANDWIDTH_SESSION_LIMIT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-bandwidth-session-limit"; }
+    };
+
+    /** 按协议的会话限速（KB/s），如 dynamic-bandwidth-session-limit-rdp */
+    public static IntegerGuacamoleProperty bandwidthSessionLimit(final String protocol) {
+        return new IntegerGuacamoleProperty() {
+            @Override
+            public String getName() { return "dynamic-bandwidth-session-limit-" + protocol.toLowerCase(); }
+        };
+    }
+
+    /** 按协议的公平排队权重，默认 1，如 dynamic-bandwidth-weight-ssh */
+    public static IntegerGuacamoleProperty bandwidthWeight(final String protocol) {
+        return new IntegerGuacamoleProperty() {
+            @Override
+            public String getName() { return "dynamic-bandwidth-weight-" + protocol.toLowerCase(); }
+        };
+    }
+
+    // ===== 断线重连宽限期 =====
+
+    /** 隧道非正常断开后保留 guacd 会话的时长（毫秒），0 表示不保留 */
+    public static final IntegerGuacamoleProperty RECONNECT_GRACE_PERIOD = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-reconnect-grace-period"; }
+    };
+
+    // ===== 文件与剪贴板传输 =====
+
+    /** 为动态连接开启 SFTP 文件传输（SSH 走同一连接，RDP/VNC 以相同账号连接目标主机的 SFTP） */
+    public static final BooleanGuacamoleProperty TRANSFER_SFTP = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-sftp"; }
+    };
+
+    /** 按协议覆盖 SFTP 开关，如 dynamic-transfer-sftp-vnc */
+    public static BooleanGuacamoleProperty transferSftp(final String protocol) {
+        return new BooleanGuacamoleProperty() {
+            @Override
+            public String getName() { return "dynamic-transfer-sftp-" + protocol.toLowerCase(); }
+        };
+    }
+
+    /** RDP/VNC 连接目标主机 SFTP 的端口 */
+    public static final IntegerGuacamoleProperty TRANSFER_SFTP_PORT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-sftp-port"; }
+    };
+
+    /** SFTP 上传文件的默认目录，未配置时由 guacd 决定 */
+    public static final StringGuacamoleProperty TRANSFER_SFTP_DIRECTORY = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-sftp-directory"; }
+    };
+
+    /** SFTP 文件浏览的根目录 */
+    public static final StringGuacamoleProperty TRANSFER_SFTP_ROOT_DIRECTORY = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-sftp-root-directory"; }
+    };
+
+    /** 为 RDP 连接开启驱动器重定向 */
+    public static final BooleanGuacamoleProperty TRANSFER_DRIVE = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-drive"; }
+    };
+
+    /** 驱动器在 guacd 主机上的目录，支持 ${GUAC_USERNAME} 等参数令牌 */
+    public static final StringGuacamoleProperty TRANSFER_DRIVE_PATH = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-drive-path"; }
+    };
+
+    /** 驱动器在远程桌面中显示的名称 */
+    public static final StringGuacamoleProperty TRANSFER_DRIVE_NAME = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-drive-name"; }
+    };
+
+    /** 传输接口上传/下载时每个 blob 的字节数（按 3 的倍数取整，编码后无填充） */
+    public static final IntegerGuacamoleProperty TRANSFER_CHUNK_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-chunk-size"; }
+    };
+
+    /** 等待对端确认（ack）或下一个 blob 的超时（毫秒） */
+    public static final IntegerGuacamoleProperty TRANSFER_ACK_TIMEOUT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-ack-timeout"; }
+    };
+
+    /** 单次剪贴板粘贴最多发送的字节数，超出部分丢弃（guacd 的剪贴板缓冲同样有上限） */
+    public static final IntegerGuacamoleProperty TRANSFER_CLIPBOARD_LIMIT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-transfer-clipboard-limit"; }
+    };
+
+    // ===== 多节点会话亲和 =====
+
+    /** 本节点名称，写入生成的连接 ID；未配置时为单节点部署 */
+    public static final StringGuacamoleProperty CLUSTER_NODE = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-cluster-node"; }
+    };
+
+    /** 集群成员，逗号分隔的 节点名=基础地址，如 guac-1=http://10.0.0.1:8080/guacamole */
+    public static final StringGuacamoleProperty CLUSTER_NODES = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-cluster-nodes"; }
+    };
+
+    /** 集群成员文件，每行一个 节点名=基础地址，修改后自动重新加载 */
+    public static final StringGuacamoleProperty CLUSTER_NODES_FILE = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-cluster-nodes-file"; }
+    };
+
+    /** 每个节点在哈希环上的虚拟节点数 */
+    public static final IntegerGuacamoleProperty CLUSTER_VIRTUAL_NODES = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-cluster-virtual-nodes"; }
+    };
+
+    /**
+     * 节点间转发的共享密钥，转发请求带 HMAC 签名，被转发节点校验后才信任转发标记；
+     * 未配置时只信任来自成员地址的转发请求
+     */
+    public static final StringGuacamoleProperty CLUSTER_SECRET = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-cluster-secret"; }
+    };
+
+    /** 转发到其他节点时的连接超时（毫秒） */
+    public static final IntegerGuacamoleProperty CLUSTER_FORWARD_TIMEOUT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-cluster-forward-timeout"; }
+    };
+
+    // ===== 登录耗时追踪 =====
+
+    /** 登录追踪采样比例（百分比），0 表示关闭 */
+    public static final IntegerGuacamoleProperty TRACE_SAMPLE_PERCENT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-trace-sample-percent"; }
+    };
+
+    /** 总耗时超过该值（毫秒）的登录记为慢登录 */
+    public static final IntegerGuacamoleProperty TRACE_SLOW_THRESHOLD = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-trace-slow-threshold"; }
+    };
+
+    /** 保留的最近慢登录条数 */
+    public static final IntegerGuacamoleProperty TRACE_SLOW_BUFFER = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-trace-slow-buffer"; }
+    };
+
+    // ===== 目标可达性探测 =====
+
+    /** 是否在 token 校验时探测目标主机并拒绝已知不可达的目标，默认关闭；探测从 Web 应用发出，仅在其网络与 guacd 一致时开启 */
+    public static final BooleanGuacamoleProperty REACHABILITY_ENABLED = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-reachability-enabled"; }
+    };
+
+    /** 可达结果缓存时间（毫秒） */
+    public static final IntegerGuacamoleProperty REACHABILITY_POSITIVE_TTL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-reachability-positive-ttl"; }
+    };
+
+    /** 不可达结果缓存时间（毫秒） */
+    public static final IntegerGuacamoleProperty REACHABILITY_NEGATIVE_TTL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-reachability-negative-ttl"; }
+    };
+
+    /** 单次 TCP 探测超时（毫秒） */
+    public static final IntegerGuacamoleProperty REACHABILITY_PROBE_TIMEOUT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-reachability-probe-timeout"; }
+    };
+
+    /** DNS 解析结果缓存时间（毫秒） */
+    public static final IntegerGuacamoleProperty REACHABILITY_DNS_TTL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-reachability-dns-ttl"; }
+    };
+
+    // ===== 连接存储日志 =====
+
+    /** 是否把连接存储写入本地日志，重启后恢复 */
+    public static final BooleanGuacamoleProperty JOURNAL_ENABLED = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-journal-enabled"; }
+    };
+
+    /** 日志与快照目录，需要挂载到容器外才能跨部署保留 */
+    public static final StringGuacamoleProperty JOURNAL_DIRECTORY = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-journal-directory"; }
+    };
+
+    /** 内存映射日志文件大小（MB），写满时触发压缩 */
+    public static final IntegerGuacamoleProperty JOURNAL_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-journal-size"; }
+    };
+
+    /** group commit 间隔（毫秒） */
+    public static final IntegerGuacamoleProperty JOURNAL_COMMIT_INTERVAL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-journal-commit-interval"; }
+    };
+
+    /** 定期压缩为快照的间隔（毫秒） */
+    public static final IntegerGuacamoleProperty JOURNAL_COMPACT_INTERVAL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "dynamic-journal-compact-interval"; }
+    };
+
+    /**
+     * 读取配置项，读取失败或未配置时返回默认值
+     */
+    public static <T> T get(GuacamoleProperty<T> property, T defaultValue) {
+        try {
+            return LocalEnvironment.getInstance().getProperty(property, defaultValue);
+        } catch (Exception e) {
+            logger.warn("⚠️ Invalid value for property {}, using default: {}", property.getName(), defaultValue);
+            return defaultValue;
+        }
+    }
+
+}
@@ -1,46 +1,213 @@
 package org.apache.guacamole.dynamic;
 
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.LocalEnvironment;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 public class DynamicConnectionService {
     
     private static final Logger logger = LoggerFactory.getLogger(DynamicConnectionService.class);
-    private final Map<String, GuacamoleConfiguration> connectionStore = new ConcurrentHashMap<>();
+    // 存储紧凑形式，公共参数按协议模板共享，取出时再还原
+    private final Map<String, CompactConfiguration> connectionStore = new ConcurrentHashMap<>();
+    // 首次使用时才创建的组件，shutdown 时关闭其中已创建的
+    private final List<Lazy<?>> lazyComponents = new CopyOnWriteArrayList<>();
+    // 连接历史记录器
+    private final Lazy<ConnectionHistoryRecorder> historyRecorder =
+            lazy(ConnectionHistoryRecorder::new, ConnectionHistoryRecorder::shutdown);
+    // 目标可达性缓存
+    private final Lazy<TargetReachabilityCache> reachabilityCache =
+            lazy(TargetReachabilityCache::new, TargetReachabilityCache::shutdown);
+    // 断线重连宽限期管理
+    private final Lazy<ReconnectGraceManager> reconnectGrace =
+            lazy(ReconnectGraceManager::new, ReconnectGraceManager::shutdown);
+    // 登录耗时追踪
+    private final Lazy<LoginTracer> loginTracer = lazy(LoginTracer::new, LoginTracer::shutdown);
+    // 文件与剪贴板传输
+    private final Lazy<StreamTransferManager> streamTransfers =
+            lazy(StreamTransferManager::new, StreamTransferManager::shutdown);
+    // 多节点部署的成员信息，决定生成的 ID 中的节点名
+    private final Lazy<ClusterMembership> cluster = lazy(ClusterMembership::new, null);
+    // 隧道出口带宽调度
+    private final Lazy<TunnelBandwidthScheduler> bandwidthScheduler = lazy(TunnelBandwidthScheduler::new, null);
+    // 隧道读流的合并预算
+    private final Lazy<TunnelCoalescer> coalescer = lazy(TunnelCoalescer::new, null);
+    private final HostLoadTracker loadTracker = new HostLoadTracker();
+    // 负载均衡组 -> 各候选主机对应的连接 ID
+    private final Map<String, List<String>> balancingGroups = new ConcurrentHashMap<>();
+    private ConnectionStoreJournal journal;
+    
+    // 打开本地日志并恢复连接存储，只应由认证提供者的实例调用
+    public void openJournal() {
+        if (!DynamicConnectionProperties.get(DynamicConnectionProperties.JOURNAL_ENABLED, false)) {
+            return;
+        }
+        
+        String path = DynamicConnectionProperties.get(DynamicConnectionProperties.JOURNAL_DIRECTORY, null);
+        File directory = path != null ? new File(path)
+                : new File(LocalEnvironment.getInstance().getGuacamoleHome(), "dynamic-journal");
+        ConnectionStoreJournal opened = new ConnectionStoreJournal(directory,
+                DynamicConnectionProperties.get(DynamicConnectionProperties.JOURNAL_SIZE, 64) * 1024 * 1024,
+                DynamicConnectionProperties.get(DynamicConnectionProperties.JOURNAL_COMMIT_INTERVAL, 10),
+                DynamicConnectionProperties.get(DynamicConnectionProperties.JOURNAL_COMPACT_INTERVAL, 300000),
+                connectionStore);
+        if (opened.open()) {
+            journal = opened;
+        }
+    }
     
     public String createDynamicConnection(GuacamoleConfiguration config) throws GuacamoleException {
+        Object event = ExtensionEvents.beginStoreOperation();
+        String connectionId = null;
         try {
-            String connectionId = "dynamic-" + UUID.randomUUID().toString();
-            connectionStore.put(connectionId, config);
+            connectionId = getCluster().mintId("dynamic-");
+            CompactConfiguration compact = CompactConfiguration.of(config);
+            connectionStore.put(connectionId, compact);
+            if (journal != null) {
+                journal.append(connectionId, compact);
+            }
             logger.info("💾 Created dynamic connection: {}", connectionId);
             logger.info("   Protocol: {}", config.getProtocol());
             logger.info("   Hostname: {}", config.getParameter("hostname"));
             logger.info("   Port: {}", config.getParameter("port"));
+            ExtensionEvents.endStoreOperation(event, "create", connectionId, "success");
             return connectionId;
         } catch (Exception e) {
+            ExtensionEvents.endStoreOperation(event, "create", connectionId, "failed");
             throw new GuacamoleException("Failed to create dynamic connection", e);
         }
     }
     
     public GuacamoleConfiguration getConfiguration(String connectionId) throws GuacamoleException {
-        GuacamoleConfiguration config = connectionStore.get(connectionId);
-        if (config == null) {
+        Object event = ExtensionEvents.beginStoreOperation();
+        CompactConfiguration compact = connectionStore.get(connectionId);
+        if (compact == null) {
+            ExtensionEvents.endStoreOperation(event, "get", connectionId, "missing");
             logger.error("❌ Dynamic connection not found: {}", connectionId);
             throw new GuacamoleException("Dynamic connection not found: " + connectionId);
         }
         logger.info("📖 Retrieved configuration for: {}", connectionId);
+        GuacamoleConfiguration config = compact.toConfiguration();
+        ExtensionEvents.endStoreOperation(event, "get", connectionId, "found");
         return config;
     }
     
+    public String createBalancingGroup(List<String> memberIds) {
+        String groupId = getCluster().mintId("dynamic-group-");
+        balancingGroups.put(groupId, new ArrayList<>(memberIds));
+        logger.info("💾 Created balancing group: {} ({} members)", groupId, memberIds.size());
+        return groupId;
+    }
+    
+    // 组不存在时返回 null
+    public List<String> getBalancingGroupMembers(String groupId) {
+        return balancingGroups.get(groupId);
+    }
+    
     // 添加连接存在性检查
     public boolean connectionExists(String connectionId) {
+        Object event = ExtensionEvents.beginStoreOperation();
         boolean exists = connectionStore.containsKey(connectionId);
+        ExtensionEvents.endStoreOperation(event, "exists", connectionId, exists ? "found" : "missing");
         logger.info("🔍 Connection {} exists: {}", connectionId, exists);
         return exists;
     }
+    
+    /**
+     * 首次使用时才创建的组件：读取配置、启动后台线程的管理器不在扩展加载时就初始化
+     */
+    private static final class Lazy<T> {
+
+        private final Supplier<T> factory;
+        private final Consumer<T> shutdown;
+        private volatile T instance;
+
+        Lazy(Supplier<T> factory, Consumer<T> shutdown) {
+            this.factory = factory;
+            this.shutdown = shutdown;
+        }
+
+        T get() {
+            T value = instance;
+            if (value == null) {
+                synchronized (this) {
+                    if (instance == null) {
+                        instance = factory.get();
+                    }
+                    value = instance;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * 只关闭已创建的实例，不为了关闭而创建
+         */
+        void shutdown() {
+            T value = instance;
+            if (value != null && shutdown != null) {
+                shutdown.accept(value);
+            }
+        }
+    }
+
+    private <T> Lazy<T> lazy(Supplier<T> factory, Consumer<T> shutdown) {
+        Lazy<T> component = new Lazy<>(factory, shutdown);
+        lazyComponents.add(component);
+        return component;
+    }
+
+    public ConnectionHistoryRecorder getHistoryRecorder() {
+        return historyRecorder.get();
+    }
+
+    public TargetReachabilityCache getReachabilityCache() {
+        return reachabilityCache.get();
+    }
+
+    public ReconnectGraceManager getReconnectGrace() {
+        return reconnectGrace.get();
+    }
+
+    public LoginTracer getLoginTracer() {
+        return loginTracer.get();
+    }
+
+    public StreamTransferManager getStreamTransfers() {
+        return streamTransfers.get();
+    }
+
+    public ClusterMembership getCluster() {
+        return cluster.get();
+    }
+
+    public TunnelBandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler.get();
+    }
+
+    public TunnelCoalescer getCoalescer() {
+        return coalescer.get();
+    }
+    
+    public HostLoadTracker getLoadTracker() {
+        return loadTracker;
+    }
+    
+    public void shutdown() {
+        for (Lazy<?> component : lazyComponents) {
+            component.shutdown();
+        }
+        if (journal != null) {
+            journal.shutdown();
+        }
+    }
 }
\ No newline at end of file
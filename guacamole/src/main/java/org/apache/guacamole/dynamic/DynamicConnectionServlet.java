@@ -2,27 +2,73 @@ package org.apache.guacamole.dynamic;
 
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
 import org.apache.guacamole.GuacamoleResourceNotFoundException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.net.GuacamoleSocket;
 import org.apache.guacamole.net.GuacamoleTunnel;
-import org.apache.guacamole.net.InetGuacamoleSocket;
 import org.apache.guacamole.net.SimpleGuacamoleTunnel;
-import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
 import org.apache.guacamole.servlet.GuacamoleHTTPTunnelServlet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 
+/**
+ * 扩展自带的 HTTP 隧道 Servlet（/dynamic/connect 流程）
+ *
+ * 不在 Web 应用自带的 web.xml 中，使用 Web 应用自带客户端（/tunnel、/websocket-tunnel）的动态连接不经过这里。
+ * 合并预算（TunnelCoalescer）和带宽调度（TunnelBandwidthScheduler）在隧道层进行，两条路径都生效；
+ * 读流 gzip/deflate 压缩和虚拟线程 I/O（dispatch / TunnelIoExecutor）需要接管 HTTP 请求本身，只在这里生效。
+ */
 public class DynamicConnectionServlet extends GuacamoleHTTPTunnelServlet {
     
+    private static final Logger logger = LoggerFactory.getLogger(DynamicConnectionServlet.class);
+    
+    private static final int COMPRESSOR_BUFFER_SIZE = 8192;
+    
     @Inject
     private DynamicConnectionService dynamicService;
     
+    // 读流压缩配置；合并预算由 doConnect 返回的隧道（TunnelCoalescer）决定，这里的缓冲只需容纳一批
+    private final boolean compressionEnabled =
+            DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_COMPRESSION, true);
+    private final int coalesceBytes =
+            DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_COALESCE_BYTES, 16384);
+    
+    // 每个隧道复用的压缩器，隧道注销时释放
+    private final Map<String, TunnelStreamCompressor> compressors = new ConcurrentHashMap<>();
+    
+    // 隧道 I/O 执行器，未开启时为 null，读写在容器线程上同步执行
+    private final TunnelIoExecutor ioExecutor = createIoExecutor();
+    
+    private static TunnelIoExecutor createIoExecutor() {
+        if (!DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_VIRTUAL_THREADS, false)) {
+            return null;
+        }
+        TunnelIoExecutor executor = new TunnelIoExecutor(
+                DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_IO_MAX_CONCURRENT, 10000));
+        logger.info("🧵 Tunnel I/O mode: {}", executor.getMode());
+        return executor;
+    }
+    
     @Override
     protected GuacamoleTunnel doConnect(HttpServletRequest request) throws GuacamoleException {
         // 从会话获取连接ID
@@ -39,13 +85,200 @@ public class DynamicConnectionServlet extends GuacamoleHTTPTunnelServlet {
         // 获取配置并创建隧道
         GuacamoleConfiguration config = dynamicService.getConfiguration(connectionId);
         
-        // 手动创建隧道
-        GuacamoleSocket socket = new ConfiguredGuacamoleSocket(
-            new InetGuacamoleSocket("localhost", 4822),
-            config
-        );
+        // 宽限期内的重连直接加入仍在运行的 guacd 会话
+        ReconnectGraceManager grace = dynamicService.getReconnectGrace();
+        GuacamoleTunnel guacdTunnel = grace.resume(connectionId, new GuacamoleClientInformation());
+        String path = guacdTunnel != null ? "rejoin" : "servlet";
+        if (guacdTunnel == null) {
+            dynamicService.getReachabilityCache().awaitReachable(config);
+            
+            // 手动创建隧道，guacd 地址与重连加入时一致，取自 guacamole.properties
+            GuacamoleConfiguration connectConfig = new GuacamoleConfiguration(config);
+            dynamicService.getStreamTransfers().applyProfile(connectConfig);
+            GuacamoleSocket socket = GuacdConnector.connect(connectConfig, new GuacamoleClientInformation());
+            guacdTunnel = new SimpleGuacamoleTunnel(socket);
+        }
+        guacdTunnel = grace.track(connectionId, guacdTunnel);
+        // 带宽调度在隧道读取层进行，与 Web 应用自带隧道上的动态连接相同
+        guacdTunnel = dynamicService.getBandwidthScheduler().track(guacdTunnel, config);
+        guacdTunnel = ExtensionEvents.trackTunnel(guacdTunnel, connectionId, config.getProtocol(), path);
         
-        return new SimpleGuacamoleTunnel(socket);
+        GuacamoleTunnel tunnel = dynamicService.getHistoryRecorder().track(guacdTunnel,
+                "Dynamic - " + config.getProtocol().toUpperCase() + " to " + config.getParameter("hostname"),
+                "dynamic-user", request.getRemoteAddr());
+        // 合并预算与 Web 应用自带隧道上的动态连接相同，由 reader.available() 体现
+        return dynamicService.getCoalescer().track(tunnel);
+    }
+    
+    @Override
+    protected void doRead(HttpServletRequest request, HttpServletResponse response, String tunnelUUID)
+            throws GuacamoleException {
+        if (!dispatch(request, response, () -> readTunnel(request, response, tunnelUUID))) {
+            readTunnel(request, response, tunnelUUID);
+        }
+    }
+    
+    @Override
+    protected void doWrite(HttpServletRequest request, HttpServletResponse response, String tunnelUUID)
+            throws GuacamoleException {
+        if (!dispatch(request, response, () -> super.doWrite(request, response, tunnelUUID))) {
+            super.doWrite(request, response, tunnelUUID);
+        }
+    }
+    
+    /**
+     * 把隧道读写转移到 I/O 执行器（Java 21 为虚拟线程），释放容器线程。
+     * 执行器不可用或请求不支持异步时返回 false，由调用方同步执行
+     */
+    private boolean dispatch(HttpServletRequest request, HttpServletResponse response, TunnelIoTask task) {
+        if (ioExecutor == null || !ioExecutor.isAvailable() || !request.isAsyncSupported()) {
+            return false;
+        }
+        
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(0);
+        
+        Runnable wrapped = () -> {
+            try {
+                task.run();
+            } catch (GuacamoleException e) {
+                logger.debug("Tunnel I/O failed: {}", e.getMessage());
+                try {
+                    sendError(response, e.getStatus().getGuacamoleStatusCode(), e.getHttpStatusCode(), e.getMessage());
+                } catch (ServletException ignored) {
+                    // 响应已不可写
+                }
+            } finally {
+                async.complete();
+            }
+        };
+        
+        // 超过并发上限时在当前线程执行
+        if (!ioExecutor.tryExecute(wrapped)) {
+            wrapped.run();
+        }
+        return true;
+    }
+    
+    private interface TunnelIoTask {
+        void run() throws GuacamoleException;
+    }
+    
+    /**
+     * 长轮询读：按隧道的合并预算 flush，并按客户端能力压缩
+     */
+    private void readTunnel(HttpServletRequest request, HttpServletResponse response, String tunnelUUID)
+            throws GuacamoleException {
+        
+        GuacamoleTunnel tunnel = getTunnel(tunnelUUID);
+        if (!tunnel.isOpen()) {
+            throw new GuacamoleResourceNotFoundException("Tunnel is closed.");
+        }
+        
+        GuacamoleReader reader = tunnel.acquireReader();
+        TunnelStreamCompressor compressor = null;
+        try {
+            response.setContentType("application/octet-stream");
+            response.setHeader("Cache-Control", "no-cache");
+            
+            OutputStream stream = response.getOutputStream();
+            compressor = getCompressor(tunnelUUID, request);
+            if (compressor != null) {
+                response.setHeader("Content-Encoding", compressor.getEncoding().getName());
+                response.setHeader("Vary", "Accept-Encoding");
+                stream = compressor.open(stream);
+            }
+            
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), coalesceBytes);
+            try {
+                char[] message = reader.read();
+                if (message == null) {
+                    throw new GuacamoleConnectionClosedException("Tunnel reached end of stream.");
+                }
+                
+                do {
+                    out.write(message, 0, message.length);
+                    
+                    // 与 Web 应用的隧道端点相同，available() 为 false 时发送
+                    if (!reader.available()) {
+                        out.flush();
+                        response.flushBuffer();
+                    }
+                    
+                    if (tunnel.hasQueuedReaderThreads()) {
+                        break;
+                    }
+                } while (tunnel.isOpen() && (message = reader.read()) != null);
+                
+                if (message == null) {
+                    deregisterTunnel(tunnelUUID);
+                    tunnel.close();
+                }
+                
+                out.write("0.;");
+                out.flush();
+                response.flushBuffer();
+            } catch (GuacamoleConnectionClosedException e) {
+                deregisterTunnel(tunnelUUID);
+                tunnel.close();
+                out.write("0.;");
+                out.flush();
+                response.flushBuffer();
+            } catch (GuacamoleException e) {
+                deregisterTunnel(tunnelUUID);
+                tunnel.close();
+                throw e;
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Error writing to servlet output stream", e);
+            deregisterTunnel(tunnelUUID);
+            tunnel.close();
+        } finally {
+            // 隧道在本次读取中被注销时，压缩器已不在映射中，由这里释放
+            if (compressor != null && compressors.get(tunnelUUID) != compressor) {
+                compressor.end();
+            }
+            tunnel.releaseReader();
+        }
+    }
+    
+    private TunnelStreamCompressor getCompressor(String tunnelUUID, HttpServletRequest request) {
+        if (!compressionEnabled) {
+            return null;
+        }
+        
+        TunnelStreamCompressor.Encoding encoding =
+                TunnelStreamCompressor.negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            return null;
+        }
+        
+        TunnelStreamCompressor compressor = compressors.get(tunnelUUID);
+        if (compressor == null || compressor.getEncoding() != encoding) {
+            TunnelStreamCompressor previous = compressors.put(tunnelUUID,
+                    compressor = new TunnelStreamCompressor(encoding, Deflater.BEST_SPEED, COMPRESSOR_BUFFER_SIZE));
+            if (previous != null) {
+                previous.end();
+            }
+        }
+        return compressor;
+    }
+    
+    @Override
+    protected void deregisterTunnel(String tunnelUUID) {
+        super.deregisterTunnel(tunnelUUID);
+        // 可能仍被当前读请求使用，释放交给 doRead
+        compressors.remove(tunnelUUID);
+    }
+    
+    @Override
+    public void destroy() {
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+        }
+        super.destroy();
     }
     
     @Override
@@ -84,6 +317,9 @@ public class DynamicConnectionServlet extends GuacamoleHTTPTunnelServlet {
                 String redirectUrl = request.getContextPath() + "/#/client/" + connectionId;
                 response.sendRedirect(redirectUrl);
                 
+            } else if (request.getQueryString() != null) {
+                // 隧道读写请求（read:/write:/connect）交给父类处理
+                handleTunnelRequest(request, response);
             } else {
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing required parameters: protocol and hostname");
             }
@@ -2,7 +2,6 @@ package org.apache.guacamole.dynamic;
 
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.auth.*;
-import org.apache.guacamole.net.auth.simple.SimpleConnection;
 import org.apache.guacamole.net.auth.simple.SimpleConnectionDirectory;
 import org.apache.guacamole.net.auth.simple.SimpleConnectionGroup;
 import org.apache.guacamole.net.auth.simple.SimpleConnectionGroupDirectory;
@@ -17,7 +16,8 @@ public class DynamicUserContext extends AbstractUserContext {
     private final AuthenticatedUser authenticatedUser;
     private final DynamicConnectionService dynamicService;
     private final Map<String, Connection> connections = new HashMap<>();
-    private final Set<ConnectionGroup> connectionGroups = new HashSet<>();
+    private final Map<String, ConnectionGroup> connectionGroups = new HashMap<>();
+    private final Set<String> balancingGroupIds = new LinkedHashSet<>();
     private String dynamicConnectionId = null;
 
     // 原有构造函数（向后兼容）
@@ -39,6 +39,11 @@ public class DynamicUserContext extends AbstractUserContext {
         createRootConnectionGroup();
     }
 
+    // 本上下文创建的动态连接 ID
+    Set<String> getDynamicConnectionIds() {
+        return new HashSet<>(connections.keySet());
+    }
+
     @Override
     public User self() {
         return new SimpleUser("dynamic-user") {
@@ -60,13 +65,19 @@ public class DynamicUserContext extends AbstractUserContext {
         for (Connection conn : connections.values()) {
             System.out.println("   Connection: " + conn.getName() + " (ID: " + conn.getIdentifier() + ")");
         }
-        return new DynamicConnectionDirectory(connections, dynamicService);
+        return new DynamicConnectionDirectory(connections, dynamicService, authenticatedUser);
     }
 
     @Override
     public org.apache.guacamole.net.auth.Directory<ConnectionGroup> getConnectionGroupDirectory() throws GuacamoleException {
         System.out.println("🎯 getConnectionGroupDirectory() called, groups count: " + connectionGroups.size());
-        return new SimpleConnectionGroupDirectory(connectionGroups);
+        return new DynamicConnectionGroupDirectory(connectionGroups, connections, dynamicService, authenticatedUser);
+    }
+
+    // 文件与剪贴板传输接口，由 Web 应用挂载在 /api/session/ext/dynamic-connection 下
+    @Override
+    public Object getResource() throws GuacamoleException {
+        return new StreamTransferResource(dynamicService.getStreamTransfers(), authenticatedUser);
     }
 
     private void createRootConnectionGroup() {
@@ -74,9 +85,9 @@ public class DynamicUserContext extends AbstractUserContext {
             "ROOT", 
             "ROOT", 
             Collections.emptyList(),
-            Collections.emptyList()
+            balancingGroupIds
         );
-        connectionGroups.add(rootGroup);
+        connectionGroups.put(rootGroup.getIdentifier(), rootGroup);
         System.out.println("✅ Created ROOT connection group");
     }
 
@@ -84,38 +95,59 @@ public class DynamicUserContext extends AbstractUserContext {
     private void createDynamicConnectionFromData(DynamicConnectionAuthenticationProvider.ConnectionData connData) 
             throws GuacamoleException {
         
-        if (connData.protocol == null || connData.hostname == null) {
+        List<String> hosts = connData.getCandidateHosts();
+        if (connData.protocol == null || hosts.isEmpty()) {
             throw new GuacamoleException("Missing required parameters: protocol and hostname");
         }
 
         System.out.println("🎯 Creating dynamic connection from connection data:");
         System.out.println("   Protocol: " + connData.protocol);
-        System.out.println("   Hostname: " + connData.hostname);
+        System.out.println("   Hostname: " + String.join(", ", hosts));
         System.out.println("   Port: " + connData.port);
         System.out.println("   Username: " + connData.username);
 
-        // 创建配置
-        GuacamoleConfiguration config = new GuacamoleConfiguration();
-        config.setProtocol(connData.protocol);
-        config.setParameter("hostname", connData.hostname);
-        config.setParameter("port", String.valueOf(connData.port));
-        
-        if (connData.username != null) config.setParameter("username", connData.username);
-        if (connData.password != null) config.setParameter("password", connData.password);
+        // 每个候选主机一个连接
+        List<DynamicConnection> members = new ArrayList<>();
+        for (String hostname : hosts) {
+            // 创建配置
+            GuacamoleConfiguration config = new GuacamoleConfiguration();
+            config.setProtocol(connData.protocol);
+            config.setParameter("hostname", hostname);
+            config.setParameter("port", String.valueOf(connData.port));
+            
+            if (connData.username != null) config.setParameter("username", connData.username);
+            if (connData.password != null) config.setParameter("password", connData.password);
+            if (connData.bandwidthLimit != null) {
+                config.setParameter(TunnelBandwidthScheduler.LIMIT_PARAMETER, String.valueOf(connData.bandwidthLimit));
+            }
 
-        // 设置协议特定参数
-        configureProtocolSpecificParameters(config, connData.protocol);
+            // 设置协议特定参数
+            configureProtocolSpecificParameters(config, connData.protocol);
 
-        // 使用 DynamicConnectionService 创建连接 ID 和存储配置
-        String connectionId = dynamicService.createDynamicConnection(config);
-        this.dynamicConnectionId = connectionId;
+            // 使用 DynamicConnectionService 创建连接 ID 和存储配置
+            String memberId = dynamicService.createDynamicConnection(config);
+            
+            // 创建连接对象
+            DynamicConnection member = new DynamicConnection(memberId, config, dynamicService, authenticatedUser);
+            connections.put(memberId, member);
+            members.add(member);
+        }
         
-        // 创建连接对象
-        SimpleConnection connection = new SimpleConnection(connectionId, connectionId, config, true);
-        connection.setName("Dynamic - " + connData.protocol.toUpperCase() + " to " + connData.hostname);
-        connection.setParentIdentifier("ROOT");
+        String connectionId = members.get(0).getIdentifier();
+        this.dynamicConnectionId = connectionId;
+        DynamicConnection connection = members.get(0);
         
-        connections.put(connectionId, connection);
+        // 🔥 多主机：以负载均衡组的形式暴露，连接时按负载选择并故障切换
+        if (members.size() > 1) {
+            List<String> memberIds = new ArrayList<>();
+            for (DynamicConnection member : members) {
+                memberIds.add(member.getIdentifier());
+            }
+            String groupId = dynamicService.createBalancingGroup(memberIds);
+            connectionGroups.put(groupId, new DynamicBalancingGroup(groupId, members, dynamicService));
+            balancingGroupIds.add(groupId);
+            System.out.println("⚖️ Created balancing group " + groupId + " with " + members.size() + " hosts");
+        }
         
         System.out.println("✅✅✅ SUCCESS: Created dynamic connection from data:");
         System.out.println("   Name: " + connection.getName());
@@ -168,9 +200,7 @@ public class DynamicUserContext extends AbstractUserContext {
         this.dynamicConnectionId = connectionId;
         
         // 🔥🔥🔥 关键修复：确保使用正确的连接ID创建连接对象 🔥🔥🔥
-        SimpleConnection connection = new SimpleConnection(connectionId, connectionId, config, true);
-        connection.setName("Dynamic - " + protocol.toUpperCase() + " to " + hostname);
-        connection.setParentIdentifier("ROOT");
+        DynamicConnection connection = new DynamicConnection(connectionId, config, dynamicService, authenticatedUser);
         
         connections.put(connectionId, connection);
         
@@ -220,15 +250,32 @@ public class DynamicUserContext extends AbstractUserContext {
     
         private final Map<String, Connection> connectionMap;
         private final DynamicConnectionService dynamicService;
+        private final AuthenticatedUser authenticatedUser;
         
-        public DynamicConnectionDirectory(Map<String, Connection> connectionMap, DynamicConnectionService dynamicService) {
+        public DynamicConnectionDirectory(Map<String, Connection> connectionMap, DynamicConnectionService dynamicService,
+                                          AuthenticatedUser authenticatedUser) {
             super(connectionMap.values());
             this.connectionMap = connectionMap;
             this.dynamicService = dynamicService;
+            this.authenticatedUser = authenticatedUser;
         }
         
         @Override
         public Connection get(String identifier) throws GuacamoleException {
+            long phaseStart = LoginTracer.now();
+            Object event = ExtensionEvents.beginDirectoryLookup();
+            Connection connection = null;
+            try {
+                connection = lookup(identifier);
+                return connection;
+            } finally {
+                ExtensionEvents.endDirectoryLookup(event, "connection", identifier, connection != null);
+                LoginTracer tracer = dynamicService.getLoginTracer();
+                tracer.record(tracer.find(identifier), LoginTracer.Phase.DIRECTORY_LOOKUP, phaseStart);
+            }
+        }
+        
+        private Connection lookup(String identifier) throws GuacamoleException {
             System.out.println("🔍 DynamicConnectionDirectory.get() called for ID: " + identifier);
             System.out.println("   Available connections in map: " + connectionMap.keySet());
             
@@ -250,9 +297,7 @@ public class DynamicUserContext extends AbstractUserContext {
                 System.out.println("🔄 Creating connection from dynamic service: " + identifier);
                 GuacamoleConfiguration config = dynamicService.getConfiguration(identifier);
                 if (config != null) {
-                    SimpleConnection dynamicConnection = new SimpleConnection(identifier, identifier, config, true);
-                    dynamicConnection.setName("Dynamic - " + config.getProtocol().toUpperCase() + " to " + config.getParameter("hostname"));
-                    dynamicConnection.setParentIdentifier("ROOT");
+                    DynamicConnection dynamicConnection = new DynamicConnection(identifier, config, dynamicService, authenticatedUser);
                     
                     // 🚨 关键：添加到映射中以便后续使用
                     connectionMap.put(identifier, dynamicConnection);
@@ -269,4 +314,62 @@ public class DynamicUserContext extends AbstractUserContext {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    private static class DynamicConnectionGroupDirectory extends SimpleConnectionGroupDirectory {
+
+        private final Map<String, ConnectionGroup> groupMap;
+        private final Map<String, Connection> connectionMap;
+        private final DynamicConnectionService dynamicService;
+        private final AuthenticatedUser authenticatedUser;
+
+        public DynamicConnectionGroupDirectory(Map<String, ConnectionGroup> groupMap, Map<String, Connection> connectionMap,
+                                               DynamicConnectionService dynamicService, AuthenticatedUser authenticatedUser) {
+            super(groupMap.values());
+            this.groupMap = groupMap;
+            this.connectionMap = connectionMap;
+            this.dynamicService = dynamicService;
+            this.authenticatedUser = authenticatedUser;
+        }
+
+        @Override
+        public ConnectionGroup get(String identifier) throws GuacamoleException {
+            Object event = ExtensionEvents.beginDirectoryLookup();
+            ConnectionGroup group = null;
+            try {
+                group = lookup(identifier);
+                return group;
+            } finally {
+                ExtensionEvents.endDirectoryLookup(event, "connection-group", identifier, group != null);
+            }
+        }
+
+        private ConnectionGroup lookup(String identifier) throws GuacamoleException {
+            ConnectionGroup group = groupMap.get(identifier);
+            if (group != null) {
+                return group;
+            }
+
+            // 重定向时创建的组不在当前上下文中，从动态服务重建
+            List<String> memberIds = dynamicService.getBalancingGroupMembers(identifier);
+            if (memberIds == null) {
+                return null;
+            }
+
+            List<DynamicConnection> members = new ArrayList<>();
+            for (String memberId : memberIds) {
+                Connection connection = connectionMap.get(memberId);
+                if (!(connection instanceof DynamicConnection)) {
+                    connection = new DynamicConnection(memberId, dynamicService.getConfiguration(memberId),
+                            dynamicService, authenticatedUser);
+                    connectionMap.put(memberId, connection);
+                }
+                members.add((DynamicConnection) connection);
+            }
+
+            DynamicBalancingGroup balancingGroup = new DynamicBalancingGroup(identifier, members, dynamicService);
+            groupMap.put(identifier, balancingGroup);
+            System.out.println("✅ Rebuilt balancing group: " + identifier);
+            return balancingGroup;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.net.GuacamoleTunnel;
+
+/**
+ * 扩展热点路径的 JFR 事件
+ *
+ * Java 8 版本全部为空实现，调用会被 JIT 内联消除。
+ * Java 21 运行时会加载 META-INF/versions/21 下的同名实现，发出 org.apache.guacamole.dynamic.* 事件；
+ * 事件默认关闭，需要在 JFR 配置中显式开启。
+ *
+ * begin* 返回的对象只用于传给对应的 end*，事件未开启时为 null。
+ */
+public final class ExtensionEvents {
+
+    private ExtensionEvents() {
+    }
+
+    public static Object beginTokenAuthentication() {
+        return null;
+    }
+
+    /**
+     * @param path 认证方式：token 或 legacy
+     * @param outcome authenticated / redirected / rejected / failed
+     */
+    public static void endTokenAuthentication(Object event, String path, String protocol, String outcome) {
+    }
+
+    public static Object beginDecryption() {
+        return null;
+    }
+
+    public static void endDecryption(Object event, int tokenLength, String outcome) {
+    }
+
+    public static Object beginStoreOperation() {
+        return null;
+    }
+
+    /**
+     * @param operation create / get / exists
+     */
+    public static void endStoreOperation(Object event, String operation, String connectionId, String outcome) {
+    }
+
+    public static Object beginDirectoryLookup() {
+        return null;
+    }
+
+    /**
+     * @param directory connection 或 connection-group
+     */
+    public static void endDirectoryLookup(Object event, String directory, String identifier, boolean found) {
+    }
+
+    public static Object beginHandshake() {
+        return null;
+    }
+
+    public static void endHandshake(Object event, String protocol, String guacdConnectionId, String outcome) {
+    }
+
+    /**
+     * 隧道从打开到关闭记为一个事件，未开启时原样返回
+     *
+     * @param path 建立方式：connection / servlet / rejoin
+     */
+    public static GuacamoleTunnel trackTunnel(GuacamoleTunnel tunnel, String connectionId, String protocol, String path) {
+        return tunnel;
+    }
+}
@@ -0,0 +1,57 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.InetGuacamoleSocket;
+import org.apache.guacamole.net.SSLGuacamoleSocket;
+import org.apache.guacamole.net.auth.GuacamoleProxyConfiguration;
+import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * 按 guacamole.properties 中的 guacd 配置建立连接，TCP 连接与协议握手分两步，便于分别计时
+ */
+final class GuacdConnector {
+
+    private GuacdConnector() {
+    }
+
+    static GuacamoleSocket openSocket() throws GuacamoleException {
+        GuacamoleProxyConfiguration proxy = LocalEnvironment.getInstance().getDefaultGuacamoleProxyConfiguration();
+        switch (proxy.getEncryptionMethod()) {
+            case SSL:
+                return new SSLGuacamoleSocket(proxy.getHostname(), proxy.getPort());
+            case NONE:
+                return new InetGuacamoleSocket(proxy.getHostname(), proxy.getPort());
+            default:
+                throw new GuacamoleServerException("Unimplemented encryption method.");
+        }
+    }
+
+    /**
+     * 在已连接的 socket 上完成握手，失败时关闭 socket
+     */
+    static ConfiguredGuacamoleSocket handshake(GuacamoleSocket socket, GuacamoleConfiguration config,
+                                               GuacamoleClientInformation info) throws GuacamoleException {
+        Object event = ExtensionEvents.beginHandshake();
+        // 加入已有会话时没有协议
+        String protocol = config.getProtocol() != null ? config.getProtocol() : "join";
+        try {
+            ConfiguredGuacamoleSocket configured = new ConfiguredGuacamoleSocket(socket, config, info);
+            ExtensionEvents.endHandshake(event, protocol, configured.getConnectionID(), "success");
+            return configured;
+        } catch (GuacamoleException e) {
+            ExtensionEvents.endHandshake(event, protocol, config.getConnectionID(), "failed");
+            socket.close();
+            throw e;
+        }
+    }
+
+    static ConfiguredGuacamoleSocket connect(GuacamoleConfiguration config, GuacamoleClientInformation info)
+            throws GuacamoleException {
+        return handshake(openSocket(), config, info);
+    }
+}
@@ -0,0 +1,51 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按目标主机统计当前活动会话数
+ *
+ * 隧道打开时计数加一，关闭时减一，负载均衡组据此选择最空闲的候选主机。
+ * 只统计本节点经由扩展建立的会话。
+ */
+public class HostLoadTracker {
+
+    // 计数归零即移除，避免一次性目标越积越多；增减都在 compute 内完成，与移除互斥
+    private final Map<String, Integer> activeSessions = new ConcurrentHashMap<>();
+
+    public int getActiveSessions(String hostname, int port) {
+        Integer count = activeSessions.get(key(hostname, port));
+        return count != null ? count : 0;
+    }
+
+    public GuacamoleTunnel track(GuacamoleTunnel tunnel, String hostname, int port) {
+        final String key = key(hostname, port);
+        activeSessions.merge(key, 1, Integer::sum);
+
+        return new DelegatingGuacamoleTunnel(tunnel) {
+
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void close() throws GuacamoleException {
+                try {
+                    super.close();
+                } finally {
+                    if (closed.compareAndSet(false, true)) {
+                        activeSessions.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+                    }
+                }
+            }
+        };
+    }
+
+    private static String key(String hostname, int port) {
+        return (hostname != null ? hostname.toLowerCase() : "") + ":" + port;
+    }
+}
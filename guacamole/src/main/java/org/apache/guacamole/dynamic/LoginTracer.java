@@ -0,0 +1,385 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 登录各阶段耗时追踪
+ *
+ * token 到达时按采样率决定是否追踪；被采样的登录获得一个关联 ID，之后各阶段按连接 ID 找到同一个 Trace。
+ * 每个阶段结束时记入按 2 的幂分桶的直方图；收到第一条 sync 时登录结束，
+ * 总耗时超过阈值的登录放入固定大小的环形缓冲区并打印一行明细。
+ * 未被采样的登录 trace 为 null，各记录点只有一次判空。
+ */
+public class LoginTracer implements LoginTracerMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoginTracer.class);
+
+    private static final String OBJECT_NAME = "org.apache.guacamole.dynamic:type=LoginTracer";
+
+    // 直方图上界（毫秒）：1, 2, 4 ... 32768，最后一个桶收纳更大的值
+    private static final int BUCKETS = 17;
+    private static final long MAX_PENDING = 10000;
+    private static final long PENDING_TTL = TimeUnit.MINUTES.toNanos(5);
+    private static final long EXPIRE_INTERVAL_SECONDS = 60;
+
+    public enum Phase {
+        TOKEN_DECRYPT("token-decrypt"),
+        JSON_PARSE("json-parse"),
+        REDIRECT("redirect"),
+        USER_CONTEXT("get-user-context"),
+        DIRECTORY_LOOKUP("directory-lookup"),
+        GUACD_CONNECT("guacd-connect"),
+        HANDSHAKE("handshake"),
+        FIRST_SYNC("first-sync"),
+        TOTAL("total");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * 一次登录的追踪记录
+     */
+    public static class Trace {
+        private final String correlationId;
+        private final long startedAt = System.nanoTime();
+        private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+        // 关联过的连接 ID，结束或过期时按键从 pending 中移除
+        private final Set<String> connectionIds = ConcurrentHashMap.newKeySet();
+        private volatile boolean finished;
+
+        Trace(String correlationId) {
+            this.correlationId = correlationId;
+        }
+
+        public String getCorrelationId() {
+            return correlationId;
+        }
+    }
+
+    private final int samplePercent;
+    private final long slowThresholdNanos;
+    private final Map<String, Trace> pending = new ConcurrentHashMap<>();
+    private final AtomicLongArray histogram = new AtomicLongArray(Phase.values().length * BUCKETS);
+    private final AtomicLongArray phaseTotalNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicReferenceArray<String> slowLogins;
+    private final AtomicLong slowCursor = new AtomicLong();
+    private final ScheduledExecutorService expiryTimer;
+    private ObjectName registeredName;
+
+    public LoginTracer() {
+        this.samplePercent = Math.max(0, Math.min(100,
+                DynamicConnectionProperties.get(DynamicConnectionProperties.TRACE_SAMPLE_PERCENT, 10)));
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+                DynamicConnectionProperties.get(DynamicConnectionProperties.TRACE_SLOW_THRESHOLD, 3000));
+        this.slowLogins = new AtomicReferenceArray<>(Math.max(1,
+                DynamicConnectionProperties.get(DynamicConnectionProperties.TRACE_SLOW_BUFFER, 100)));
+
+        if (samplePercent > 0) {
+            // 连接后始终没有 sync 的追踪（guacd 失败、用户放弃）定期清理
+            this.expiryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dynamic-login-tracer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            expiryTimer.scheduleWithFixedDelay(this::expireStale,
+                    EXPIRE_INTERVAL_SECONDS, EXPIRE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            try {
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                    registeredName = name;
+                }
+            } catch (Exception e) {
+                logger.warn("⚠️ Failed to register login tracer MBean: {}", e.getMessage());
+            }
+        } else {
+            this.expiryTimer = null;
+        }
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 新登录到达，未被采样时返回 null
+     */
+    public Trace start() {
+        if (samplePercent == 0 || ThreadLocalRandom.current().nextInt(100) >= samplePercent) {
+            return null;
+        }
+        sampled.incrementAndGet();
+        return new Trace(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * 记录阶段耗时（从 since 到现在）
+     */
+    public void record(Trace trace, Phase phase, long since) {
+        if (trace == null || trace.finished) {
+            return;
+        }
+        long elapsed = System.nanoTime() - since;
+        trace.phaseNanos.addAndGet(phase.ordinal(), elapsed);
+        addToHistogram(phase, elapsed);
+    }
+
+    /**
+     * 把追踪关联到连接 ID，后续请求（目录查找、连接 guacd）按连接 ID 找回。
+     * 未结束的追踪达到上限时不再关联，等待定时清理，不在登录路径上扫描
+     */
+    public void attach(Trace trace, Collection<String> connectionIds) {
+        if (trace == null || trace.finished || pending.size() >= MAX_PENDING) {
+            return;
+        }
+        for (String connectionId : connectionIds) {
+            trace.connectionIds.add(connectionId);
+            pending.put(connectionId, trace);
+        }
+    }
+
+    public Trace find(String connectionId) {
+        if (pending.isEmpty() || connectionId == null) {
+            return null;
+        }
+        Trace trace = pending.get(connectionId);
+        return trace != null && !trace.finished ? trace : null;
+    }
+
+    /**
+     * 收到第一条 sync：记录总耗时，慢登录进入环形缓冲区
+     */
+    public void finish(Trace trace, String connectionId) {
+        if (trace == null || trace.finished) {
+            return;
+        }
+        trace.finished = true;
+        detach(trace);
+
+        long total = System.nanoTime() - trace.startedAt;
+        trace.phaseNanos.set(Phase.TOTAL.ordinal(), total);
+        addToHistogram(Phase.TOTAL, total);
+
+        if (total >= slowThresholdNanos) {
+            String line = describe(trace, connectionId);
+            slowLogins.set((int) (slowCursor.getAndIncrement() % slowLogins.length()), line);
+            logger.warn("🐢 Slow login {}", line);
+        }
+    }
+
+    /**
+     * 包装隧道读取，第一条 sync 到达时结束追踪；未采样时原样返回
+     */
+    public GuacamoleTunnel watchFirstSync(final Trace trace, final String connectionId, GuacamoleTunnel tunnel) {
+        if (trace == null) {
+            return tunnel;
+        }
+
+        final long connectedAt = System.nanoTime();
+        return new DelegatingGuacamoleTunnel(tunnel) {
+
+            @Override
+            public GuacamoleReader acquireReader() {
+                final GuacamoleReader reader = super.acquireReader();
+                if (trace.finished) {
+                    return reader;
+                }
+                return new GuacamoleReader() {
+
+                    @Override
+                    public boolean available() throws GuacamoleException {
+                        return reader.available();
+                    }
+
+                    @Override
+                    public char[] read() throws GuacamoleException {
+                        char[] chunk = reader.read();
+                        if (chunk != null && !trace.finished && containsSync(chunk)) {
+                            firstSync();
+                        }
+                        return chunk;
+                    }
+
+                    @Override
+                    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+                        GuacamoleInstruction instruction = reader.readInstruction();
+                        if (instruction != null && !trace.finished && "sync".equals(instruction.getOpcode())) {
+                            firstSync();
+                        }
+                        return instruction;
+                    }
+
+                    private void firstSync() {
+                        record(trace, Phase.FIRST_SYNC, connectedAt);
+                        finish(trace, connectionId);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * 按元素长度逐条跳过指令，只比较每条指令的操作码，参数中出现的 "4.sync," 不会误判。
+     * 长度按 Unicode 码点计，与 Guacamole 协议一致
+     */
+    static boolean containsSync(char[] chunk) {
+        int i = 0;
+        boolean opcode = true;
+        while (i < chunk.length) {
+            int length = 0;
+            while (i < chunk.length && chunk[i] >= '0' && chunk[i] <= '9') {
+                length = length * 10 + (chunk[i++] - '0');
+            }
+            if (i >= chunk.length || chunk[i++] != '.') {
+                return false;
+            }
+            if (opcode && length == 4 && i + 4 < chunk.length && chunk[i] == 's' && chunk[i + 1] == 'y'
+                    && chunk[i + 2] == 'n' && chunk[i + 3] == 'c' && chunk[i + 4] == ',') {
+                return true;
+            }
+            for (int codePoints = 0; codePoints < length && i < chunk.length; codePoints++) {
+                i += Character.isHighSurrogate(chunk[i]) ? 2 : 1;
+            }
+            // 元素之后是 ','（同一指令的下一个参数）或 ';'（下一条指令从操作码开始）
+            opcode = i < chunk.length && chunk[i] == ';';
+            i++;
+        }
+        return false;
+    }
+
+    private void addToHistogram(Phase phase, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = millis <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis - 1));
+        histogram.incrementAndGet(phase.ordinal() * BUCKETS + bucket);
+        phaseTotalNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    private static String describe(Trace trace, String connectionId) {
+        StringBuilder line = new StringBuilder();
+        line.append(trace.correlationId).append(" connection=").append(connectionId);
+        for (Phase phase : Phase.values()) {
+            long nanos = trace.phaseNanos.get(phase.ordinal());
+            if (nanos > 0) {
+                line.append(' ').append(phase.label).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+            }
+        }
+        return line.toString();
+    }
+
+    @Override
+    public long getSampledLogins() {
+        return sampled.get();
+    }
+
+    @Override
+    public String[] getPhaseHistogram() {
+        List<String> lines = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            long count = 0;
+            StringBuilder buckets = new StringBuilder();
+            for (int i = 0; i < BUCKETS; i++) {
+                long value = histogram.get(phase.ordinal() * BUCKETS + i);
+                count += value;
+                if (value > 0) {
+                    buckets.append(i == BUCKETS - 1 ? " >" + (1L << (i - 1)) : " <=" + (1L << i))
+                            .append("ms:").append(value);
+                }
+            }
+            if (count > 0) {
+                lines.add(phase.label + " count=" + count + " avg="
+                        + TimeUnit.NANOSECONDS.toMillis(phaseTotalNanos.get(phase.ordinal()) / count) + "ms" + buckets);
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getRecentSlowLogins() {
+        List<String> lines = new ArrayList<>();
+        long cursor = slowCursor.get();
+        for (long i = cursor - 1; i >= 0 && i >= cursor - slowLogins.length(); i--) {
+            String line = slowLogins.get((int) (i % slowLogins.length()));
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+        for (int i = 0; i < phaseTotalNanos.length(); i++) {
+            phaseTotalNanos.set(i, 0);
+        }
+        for (int i = 0; i < slowLogins.length(); i++) {
+            slowLogins.set(i, null);
+        }
+        sampled.set(0);
+    }
+
+    private void detach(Trace trace) {
+        for (String connectionId : trace.connectionIds) {
+            pending.remove(connectionId, trace);
+        }
+    }
+
+    /**
+     * 移除超过 PENDING_TTL 仍未结束的追踪
+     */
+    private void expireStale() {
+        long now = System.nanoTime();
+        for (Trace trace : pending.values()) {
+            if (trace.finished || now - trace.startedAt > PENDING_TTL) {
+                detach(trace);
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (expiryTimer != null) {
+            expiryTimer.shutdownNow();
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (Exception e) {
+                logger.debug("Failed to unregister login tracer MBean: {}", e.getMessage());
+            }
+        }
+    }
+}
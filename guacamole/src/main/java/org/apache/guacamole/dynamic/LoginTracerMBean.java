@@ -0,0 +1,18 @@
+package org.apache.guacamole.dynamic;
+
+/**
+ * 登录耗时追踪的 JMX 接口（org.apache.guacamole.dynamic:type=LoginTracer），可用 jconsole/jmc 查看
+ */
+public interface LoginTracerMBean {
+
+    /** 被采样的登录数 */
+    long getSampledLogins();
+
+    /** 各阶段耗时分布：阶段、次数、平均值及各分桶计数（毫秒） */
+    String[] getPhaseHistogram();
+
+    /** 最近的慢登录（从新到旧），含关联 ID 与各阶段耗时 */
+    String[] getRecentSlowLogins();
+
+    void reset();
+}
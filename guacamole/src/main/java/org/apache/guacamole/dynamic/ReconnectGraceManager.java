@@ -0,0 +1,270 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 断线重连宽限期
+ *
+ * 隧道非正常关闭时（客户端没有发送 disconnect），先以只读用户加入同一个 guacd 会话
+ * 占住它，再关闭原来的 socket，guacd 会话因此不会结束。宽限期内用同一个连接 ID 重连时，
+ * 通过 select $connection-id 加入该会话，加入成功后释放占位用户；
+ * 目标主机不需要重新登录，guacd 会把当前画面完整同步给新加入的用户。
+ * 宽限期结束仍未重连则释放占位用户，guacd 随之结束会话。
+ */
+public class ReconnectGraceManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconnectGraceManager.class);
+
+    private static final char[] DISCONNECT = "10.disconnect;".toCharArray();
+
+    /**
+     * 宽限期中的 guacd 会话，由一个只读占位用户保持
+     */
+    public static class ParkedSession {
+        private final String guacdConnectionId;
+        private final GuacamoleSocket keeper;
+        private volatile ScheduledFuture<?> expiry;
+
+        ParkedSession(String guacdConnectionId, GuacamoleSocket keeper) {
+            this.guacdConnectionId = guacdConnectionId;
+            this.keeper = keeper;
+        }
+
+        public String getGuacdConnectionId() {
+            return guacdConnectionId;
+        }
+
+        /**
+         * 释放占位用户，应在新用户加入后调用
+         */
+        public void release() {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            try {
+                keeper.close();
+            } catch (GuacamoleException e) {
+                logger.debug("Failed to close reconnect keeper for {}: {}", guacdConnectionId, e.getMessage());
+            }
+        }
+    }
+
+    private final long gracePeriod;
+    private final Map<String, ParkedSession> parked = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService keepers;
+
+    public ReconnectGraceManager() {
+        this.gracePeriod = DynamicConnectionProperties.get(DynamicConnectionProperties.RECONNECT_GRACE_PERIOD, 0);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dynamic-reconnect-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.keepers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "dynamic-reconnect-keeper-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return gracePeriod > 0;
+    }
+
+    /**
+     * 取出宽限期中的会话（只能取一次），没有时返回 null
+     */
+    public ParkedSession claim(String connectionId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        return parked.remove(connectionId);
+    }
+
+    /**
+     * 重连：加入宽限期中的 guacd 会话，成功后释放占位用户；没有可加入的会话或加入失败时返回 null
+     */
+    public GuacamoleTunnel resume(String connectionId, GuacamoleClientInformation info) {
+        ParkedSession session = claim(connectionId);
+        if (session == null) {
+            return null;
+        }
+
+        try {
+            GuacamoleConfiguration join = new GuacamoleConfiguration();
+            join.setConnectionID(session.getGuacdConnectionId());
+            GuacamoleTunnel tunnel = new SimpleGuacamoleTunnel(GuacdConnector.connect(join, info));
+            logger.info("🔁 Rejoined guacd session {} for {}", session.getGuacdConnectionId(), connectionId);
+            return tunnel;
+        } catch (GuacamoleException e) {
+            logger.warn("⚠️ Failed to rejoin guacd session {} for {}, starting a new session: {}",
+                    session.getGuacdConnectionId(), connectionId, e.getMessage());
+            return null;
+        } finally {
+            session.release();
+        }
+    }
+
+    /**
+     * 包装隧道：记录客户端是否主动断开，非正常关闭时把 guacd 会话转入宽限期
+     */
+    public GuacamoleTunnel track(final String connectionId, GuacamoleTunnel tunnel) {
+        if (!isEnabled() || !(tunnel.getSocket() instanceof ConfiguredGuacamoleSocket)) {
+            return tunnel;
+        }
+
+        final String guacdConnectionId = ((ConfiguredGuacamoleSocket) tunnel.getSocket()).getConnectionID();
+        if (guacdConnectionId == null) {
+            return tunnel;
+        }
+
+        return new DelegatingGuacamoleTunnel(tunnel) {
+
+            private final AtomicBoolean cleanDisconnect = new AtomicBoolean(false);
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public GuacamoleWriter acquireWriter() {
+                final GuacamoleWriter writer = super.acquireWriter();
+                return new GuacamoleWriter() {
+
+                    @Override
+                    public void write(char[] chunk, int offset, int length) throws GuacamoleException {
+                        if (containsDisconnect(chunk, offset, length)) {
+                            cleanDisconnect.set(true);
+                        }
+                        writer.write(chunk, offset, length);
+                    }
+
+                    @Override
+                    public void write(char[] chunk) throws GuacamoleException {
+                        write(chunk, 0, chunk.length);
+                    }
+
+                    @Override
+                    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+                        if ("disconnect".equals(instruction.getOpcode())) {
+                            cleanDisconnect.set(true);
+                        }
+                        writer.writeInstruction(instruction);
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws GuacamoleException {
+                if (closed.compareAndSet(false, true) && !cleanDisconnect.get() && isOpen()) {
+                    park(connectionId, guacdConnectionId);
+                }
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * 以只读占位用户加入 guacd 会话；guacd 会话已结束时加入失败，直接放弃
+     */
+    private void park(final String connectionId, final String guacdConnectionId) {
+        GuacamoleConfiguration join = new GuacamoleConfiguration();
+        join.setConnectionID(guacdConnectionId);
+        join.setParameter("read-only", "true");
+
+        final ConfiguredGuacamoleSocket keeper;
+        try {
+            keeper = GuacdConnector.connect(join, new GuacamoleClientInformation());
+        } catch (GuacamoleException e) {
+            logger.debug("guacd session {} not parked: {}", guacdConnectionId, e.getMessage());
+            return;
+        }
+
+        final ParkedSession session = new ParkedSession(guacdConnectionId, keeper);
+        ParkedSession previous = parked.put(connectionId, session);
+        if (previous != null) {
+            previous.release();
+        }
+
+        session.expiry = timer.schedule(() -> {
+            if (parked.remove(connectionId, session)) {
+                logger.info("⌛ Reconnect grace period expired for {}", connectionId);
+                session.release();
+            }
+        }, gracePeriod, TimeUnit.MILLISECONDS);
+
+        keepers.execute(() -> keep(connectionId, session));
+        logger.info("⏸️ Parked guacd session {} for {} ({} ms)", guacdConnectionId, connectionId, gracePeriod);
+    }
+
+    /**
+     * 占位用户只需消费 guacd 的输出并回应 sync，否则会被 guacd 判定为无响应而踢出
+     */
+    private void keep(String connectionId, ParkedSession session) {
+        GuacamoleReader reader = session.keeper.getReader();
+        GuacamoleWriter writer = session.keeper.getWriter();
+        try {
+            GuacamoleInstruction instruction;
+            while ((instruction = reader.readInstruction()) != null) {
+                String opcode = instruction.getOpcode();
+                if ("sync".equals(opcode) && !instruction.getArgs().isEmpty()) {
+                    writer.writeInstruction(new GuacamoleInstruction("sync", instruction.getArgs().get(0)));
+                } else if ("disconnect".equals(opcode) || "error".equals(opcode)) {
+                    break;
+                }
+            }
+        } catch (GuacamoleException e) {
+            // 占位用户被释放或 guacd 会话结束
+        }
+
+        if (parked.remove(connectionId, session)) {
+            logger.info("guacd session {} ended during reconnect grace period", session.getGuacdConnectionId());
+            session.release();
+        }
+    }
+
+    private static boolean containsDisconnect(char[] chunk, int offset, int length) {
+        int end = offset + length - DISCONNECT.length;
+        outer:
+        for (int i = offset; i <= end; i++) {
+            for (int j = 0; j < DISCONNECT.length; j++) {
+                if (chunk[i + j] != DISCONNECT[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public void shutdown() {
+        for (ParkedSession session : parked.values()) {
+            session.release();
+        }
+        parked.clear();
+        timer.shutdownNow();
+        keepers.shutdownNow();
+    }
+}
@@ -0,0 +1,439 @@
+package org.apache.guacamole.dynamic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 多节点会话亲和路由
+ *
+ * 每个节点都部署该过滤器，请求按以下顺序确定所属节点，不属于本节点的请求原样转发过去：
+ * 1. 请求中的连接 ID（REST 路径、隧道的 GUAC_ID 参数），由 ID 中的节点名直接确定；
+ * 2. GUAC_NODE cookie（本节点处理过的请求都会写入，覆盖 read:/write: 等不带连接 ID 的隧道请求）；
+ * 3. 认证令牌或客户端地址在一致性哈希环上的位置。
+ * 注意 /#/client/<id> 的 # 之后不会发送到服务端，真正携带连接 ID 的是页面随后发出的 REST 与隧道请求。
+ * Servlet 过滤器无法转发 WebSocket 升级请求，此类请求返回 421，客户端会改用 HTTP 隧道并被转发。
+ * HttpURLConnection 不支持的方法（REST 接口的 PATCH）以 POST 加 X-HTTP-Method-Override 转发，
+ * 由被转发节点的过滤器还原后再交给 Web 应用。
+ * 转发标记（不再二次路由、还原方法）只对认证过的转发请求生效：配置了 dynamic-cluster-secret 时
+ * 校验转发方的 HMAC 签名，否则要求请求来自成员节点的地址；客户端自己带上的转发头按普通请求路由。
+ */
+public class SessionAffinityFilter implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionAffinityFilter.class);
+
+    static final String NODE_COOKIE = "GUAC_NODE";
+    static final String FORWARDED_HEADER = "X-Dynamic-Forwarded-By";
+    static final String METHOD_OVERRIDE_HEADER = "X-HTTP-Method-Override";
+    static final String FORWARDED_AT_HEADER = "X-Dynamic-Forwarded-At";
+    static final String SIGNATURE_HEADER = "X-Dynamic-Forwarded-Signature";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** 签名的有效时间，容许节点间的时钟偏差 */
+    private static final long SIGNATURE_MAX_AGE_MS = 60000;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int SC_MISDIRECTED_REQUEST = 421;
+    private static final String CONNECTION_PREFIX = "dynamic-";
+    private static final String FORM_CONSUMED = SessionAffinityFilter.class.getName() + ".formConsumed";
+
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+            "transfer-encoding", "upgrade", "host", "content-length"));
+
+    /**
+     * 只由转发方设置的头，不透传客户端发来的同名头
+     */
+    private static final Set<String> FORWARDING_HEADERS = new HashSet<>(Arrays.asList(
+            FORWARDED_HEADER.toLowerCase(), FORWARDED_AT_HEADER.toLowerCase(), SIGNATURE_HEADER.toLowerCase(),
+            METHOD_OVERRIDE_HEADER.toLowerCase()));
+
+    /**
+     * HttpURLConnection.setRequestMethod 接受的方法，其余方法改用 POST 加方法覆盖头转发
+     */
+    private static final Set<String> URL_CONNECTION_METHODS = new HashSet<>(Arrays.asList(
+            "GET", "POST", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+    private ClusterMembership cluster;
+    private int forwardTimeout;
+    private SecretKeySpec secret;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        cluster = new ClusterMembership();
+        forwardTimeout = DynamicConnectionProperties.get(DynamicConnectionProperties.CLUSTER_FORWARD_TIMEOUT, 5000);
+        String configured = DynamicConnectionProperties.get(DynamicConnectionProperties.CLUSTER_SECRET, null);
+        if (configured != null && !configured.isEmpty()) {
+            secret = new SecretKeySpec(configured.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        } else if (cluster.isEnabled()) {
+            logger.warn("⚠️ dynamic-cluster-secret is not set, forwarded requests are trusted by member address only");
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        if (!cluster.isEnabled() || !(servletRequest instanceof HttpServletRequest)) {
+            chain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        cluster.refresh();
+
+        // 已由其他节点转发过来的请求不再二次路由，避免成员列表不一致时来回转发
+        if (request.getHeader(FORWARDED_HEADER) != null) {
+            if (isAuthenticatedHop(request)) {
+                chain.doFilter(restoreMethod(request), response);
+                return;
+            }
+            logger.warn("⚠️ Ignoring unauthenticated {} header from {}", FORWARDED_HEADER, request.getRemoteAddr());
+        }
+
+        String node = resolve(request);
+        String baseUrl = node != null ? cluster.getBaseUrl(node) : null;
+        if (node == null || node.equals(cluster.getSelf()) || baseUrl == null) {
+            stick(request, response, cluster.getSelf());
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if ("websocket".equalsIgnoreCase(request.getHeader("Upgrade"))) {
+            response.sendError(SC_MISDIRECTED_REQUEST, "Session belongs to node " + node);
+            return;
+        }
+
+        try {
+            forward(request, response, node, baseUrl);
+        } catch (IOException e) {
+            logger.warn("⚠️ Failed to forward {} to node {}: {}", request.getRequestURI(), node, e.getMessage());
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Node " + node + " is unavailable");
+            }
+        }
+    }
+
+    private String resolve(HttpServletRequest request) {
+        String connectionId = findConnectionId(request);
+        if (connectionId != null) {
+            return cluster.routeId(connectionId);
+        }
+
+        String cookieNode = getCookie(request, NODE_COOKIE);
+        if (cluster.isMember(cookieNode)) {
+            return cookieNode;
+        }
+
+        String token = request.getHeader("Guacamole-Token");
+        if (token == null) {
+            token = getQueryParameter(request, "token");
+        }
+        return cluster.routeKey(token != null ? token : request.getRemoteAddr());
+    }
+
+    /**
+     * 在 REST 路径、查询参数以及 HTTP 隧道 connect 请求的表单中查找连接 ID
+     */
+    private String findConnectionId(HttpServletRequest request) {
+        for (String segment : request.getRequestURI().split("/")) {
+            String decoded = decode(segment);
+            if (decoded.startsWith(CONNECTION_PREFIX) && ClusterMembership.ownerOf(decoded) != null) {
+                return decoded;
+            }
+        }
+
+        String clientId = getQueryParameter(request, "GUAC_ID");
+        if (clientId == null && "connect".equals(request.getQueryString()) && isForm(request)) {
+            // HTTP 隧道把连接参数放在 connect 请求体中，读取后转发时需要重新编码
+            request.setAttribute(FORM_CONSUMED, Boolean.TRUE);
+            clientId = request.getParameter("GUAC_ID");
+        }
+        return clientId != null ? decodeClientId(clientId) : null;
+    }
+
+    /**
+     * 客户端标识为 base64(ID \0 类型 \0 数据源)，也兼容直接使用连接 ID
+     */
+    private static String decodeClientId(String clientId) {
+        if (clientId.startsWith(CONNECTION_PREFIX)) {
+            return clientId;
+        }
+        try {
+            String decoded = new String(Base64.getDecoder().decode(clientId), StandardCharsets.UTF_8);
+            int end = decoded.indexOf('\0');
+            String id = end >= 0 ? decoded.substring(0, end) : decoded;
+            return id.startsWith(CONNECTION_PREFIX) ? id : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 转发标记是否来自成员节点：有共享密钥时校验签名与时间，否则核对来源地址
+     */
+    private boolean isAuthenticatedHop(HttpServletRequest request) {
+        String forwardedBy = request.getHeader(FORWARDED_HEADER);
+        if (!cluster.isMember(forwardedBy)) {
+            return false;
+        }
+        if (secret == null) {
+            return cluster.isMemberAddress(request.getRemoteAddr());
+        }
+
+        String forwardedAt = request.getHeader(FORWARDED_AT_HEADER);
+        String signature = request.getHeader(SIGNATURE_HEADER);
+        if (forwardedAt == null || signature == null) {
+            return false;
+        }
+        try {
+            if (Math.abs(System.currentTimeMillis() - Long.parseLong(forwardedAt)) > SIGNATURE_MAX_AGE_MS) {
+                return false;
+            }
+            String path = request.getRequestURI().substring(request.getContextPath().length());
+            byte[] expected = sign(forwardedBy, forwardedAt, getOriginalMethod(request), path, request.getQueryString());
+            return MessageDigest.isEqual(expected, Base64.getDecoder().decode(signature));
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 签名覆盖转发方、时间、原始方法和请求路径，签名不能挪用到其他请求或改写方法
+     */
+    private byte[] sign(String node, String timestamp, String method, String path, String query)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(secret);
+        String message = node + '\n' + timestamp + '\n' + method + '\n' + path + (query != null ? "?" + query : "");
+        return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String getOriginalMethod(HttpServletRequest request) {
+        String method = request.getHeader(METHOD_OVERRIDE_HEADER);
+        return method != null && "POST".equals(request.getMethod()) ? method : request.getMethod();
+    }
+
+    /**
+     * 转发方以 POST 代替的方法在这里还原，只对认证过的转发请求调用，客户端自己发来的覆盖头不生效
+     */
+    private static HttpServletRequest restoreMethod(HttpServletRequest request) {
+        final String method = getOriginalMethod(request);
+        if (method.equals(request.getMethod())) {
+            return request;
+        }
+        return new HttpServletRequestWrapper(request) {
+            @Override
+            public String getMethod() {
+                return method;
+            }
+        };
+    }
+
+    /**
+     * 写入处理请求的节点 cookie，后续不带连接 ID 的请求（read:/write: 等）据此直接回到该节点
+     */
+    private static void stick(HttpServletRequest request, HttpServletResponse response, String node) {
+        if (node.equals(getCookie(request, NODE_COOKIE))) {
+            return;
+        }
+        Cookie cookie = new Cookie(NODE_COOKIE, node);
+        cookie.setPath(request.getContextPath().isEmpty() ? "/" : request.getContextPath());
+        cookie.setHttpOnly(true);
+        response.addCookie(cookie);
+    }
+
+    /**
+     * 原样转发请求并以流的方式回传响应；隧道长轮询的每块数据读到即写出。
+     * 被转发节点不会为转发请求写 cookie，由这里写入所属节点
+     */
+    private void forward(HttpServletRequest request, HttpServletResponse response, String node, String baseUrl)
+            throws IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String query = request.getQueryString();
+        URL url = new URL(baseUrl + path + (query != null ? "?" + query : ""));
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        String method = request.getMethod();
+        boolean overridden = !URL_CONNECTION_METHODS.contains(method);
+        connection.setRequestMethod(overridden ? "POST" : method);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(forwardTimeout);
+        // 长轮询读请求可能长时间没有数据，由被转发节点决定何时结束
+        connection.setReadTimeout(0);
+
+        for (String name : Collections.list(request.getHeaderNames())) {
+            if (!HOP_BY_HOP_HEADERS.contains(name.toLowerCase()) && !FORWARDING_HEADERS.contains(name.toLowerCase())) {
+                for (String value : Collections.list(request.getHeaders(name))) {
+                    connection.addRequestProperty(name, value);
+                }
+            }
+        }
+        connection.setRequestProperty(FORWARDED_HEADER, cluster.getSelf());
+        if (overridden) {
+            connection.setRequestProperty(METHOD_OVERRIDE_HEADER, method);
+        }
+        if (secret != null) {
+            String timestamp = String.valueOf(System.currentTimeMillis());
+            try {
+                connection.setRequestProperty(FORWARDED_AT_HEADER, timestamp);
+                connection.setRequestProperty(SIGNATURE_HEADER, Base64.getEncoder().encodeToString(
+                        sign(cluster.getSelf(), timestamp, method, path, query)));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to sign forwarded request", e);
+            }
+        }
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        connection.setRequestProperty("X-Forwarded-For",
+                forwardedFor != null ? forwardedFor + ", " + request.getRemoteAddr() : request.getRemoteAddr());
+
+        byte[] form = request.getAttribute(FORM_CONSUMED) != null ? encodeForm(request) : null;
+        if (form != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(form.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(form);
+            }
+        } else if (hasBody(request)) {
+            connection.setDoOutput(true);
+            long length = request.getContentLengthLong();
+            if (length >= 0) {
+                connection.setFixedLengthStreamingMode(length);
+            } else {
+                connection.setChunkedStreamingMode(BUFFER_SIZE);
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                copy(request.getInputStream(), out, false);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        response.setStatus(status);
+        stick(request, response, node);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            if (name != null && !HOP_BY_HOP_HEADERS.contains(name.toLowerCase())) {
+                for (String value : header.getValue()) {
+                    response.addHeader(name, value);
+                }
+            }
+        }
+
+        InputStream in = status >= HttpServletResponse.SC_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+        if (in != null) {
+            try {
+                copy(in, response.getOutputStream(), true);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, boolean flushEachRead) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (flushEachRead) {
+                out.flush();
+            }
+        }
+    }
+
+    private static boolean hasBody(HttpServletRequest request) {
+        return request.getContentLengthLong() > 0 || request.getHeader("Transfer-Encoding") != null;
+    }
+
+    private static boolean isForm(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.toLowerCase().startsWith("application/x-www-form-urlencoded");
+    }
+
+    private static byte[] encodeForm(HttpServletRequest request) throws UnsupportedEncodingException {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+            for (String value : parameter.getValue()) {
+                if (form.length() > 0) {
+                    form.append('&');
+                }
+                form.append(URLEncoder.encode(parameter.getKey(), "UTF-8"))
+                        .append('=').append(URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+        return form.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 只解析查询字符串，不触发容器读取请求体
+     */
+    private static String getQueryParameter(HttpServletRequest request, String name) {
+        String query = request.getQueryString();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0 && name.equals(decode(pair.substring(0, separator)))) {
+                return decode(pair.substring(separator + 1));
+            }
+        }
+        return null;
+    }
+
+    private static String getCookie(HttpServletRequest request, String name) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (name.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
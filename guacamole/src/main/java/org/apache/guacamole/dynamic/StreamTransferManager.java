@@ -0,0 +1,666 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.apache.guacamole.GuacamoleResourceNotFoundException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.GuacamoleUpstreamException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.AuthenticatedUser;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.apache.guacamole.protocol.GuacamoleStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 文件与剪贴板传输
+ *
+ * 连接 guacd 前按 guacamole.properties 为动态连接开启 SFTP / 驱动器重定向（applyProfile）。
+ *
+ * 动态连接返回的隧道经 track 登记后支持流式传输，由 StreamTransferResource 暴露为扩展 REST 接口
+ * （/api/session/ext/dynamic-connection/transfers/...），页面端由 dynamic-transfer.js 改走这些接口：
+ * 文件下载、上传和剪贴板粘贴的数据不再经过隧道读写请求，也不在隧道读线程上读写 HTTP 请求体。
+ * 数据按固定大小的 blob 分块，每块等对端 ack 后才发送下一块，缓冲区在整个传输中复用，
+ * 每个流同一时刻只有一个 blob 在途，文件不会整体进入堆内存。
+ * 读流中被截获的 blob 只做入队、不阻塞，画面更新照常下发；上传在每块之间让出写锁给键鼠输入。
+ */
+public class StreamTransferManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamTransferManager.class);
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = i;
+        }
+    }
+
+    private static final char[] BLOB = "4.blob,".toCharArray();
+    private static final char[] END = "3.end,".toCharArray();
+    private static final char[] ACK = "3.ack,".toCharArray();
+
+    // 让出写锁时最多等待的时长
+    private static final long YIELD_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final Object STREAM_END = new Object();
+    private static final Object TUNNEL_CLOSED = new Object();
+    private static final Object OVERRUN = new Object();
+
+    private final boolean sftpEnabled;
+    private final int sftpPort;
+    private final String sftpDirectory;
+    private final String sftpRootDirectory;
+    private final boolean driveEnabled;
+    private final String drivePath;
+    private final String driveName;
+    private final int chunkSize;
+    private final long ackTimeout;
+    private final long clipboardLimit;
+
+    private final Map<String, TransferTunnel> tunnels = new ConcurrentHashMap<>();
+
+    public StreamTransferManager() {
+        this.sftpEnabled = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_SFTP, false);
+        this.sftpPort = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_SFTP_PORT, 22);
+        this.sftpDirectory = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_SFTP_DIRECTORY, null);
+        this.sftpRootDirectory = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_SFTP_ROOT_DIRECTORY, null);
+        this.driveEnabled = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_DRIVE, false);
+        this.drivePath = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_DRIVE_PATH,
+                "/var/lib/guacamole/drive");
+        this.driveName = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_DRIVE_NAME, "Guacamole");
+        // 3 的倍数编码后没有填充，与 guacamole-common-js 的默认 blob 大小一致
+        int chunk = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_CHUNK_SIZE, 6048);
+        this.chunkSize = Math.max(3, chunk - chunk % 3);
+        this.ackTimeout = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_ACK_TIMEOUT, 15000);
+        this.clipboardLimit = DynamicConnectionProperties.get(DynamicConnectionProperties.TRANSFER_CLIPBOARD_LIMIT, 262144);
+    }
+
+    /**
+     * 按配置写入 SFTP / 驱动器参数，已显式设置的参数保持不变
+     */
+    public void applyProfile(GuacamoleConfiguration config) {
+        String protocol = config.getProtocol();
+        if (protocol == null) {
+            return;
+        }
+        protocol = protocol.toLowerCase();
+
+        if (DynamicConnectionProperties.get(DynamicConnectionProperties.transferSftp(protocol), sftpEnabled)) {
+            applySftp(config, protocol);
+        }
+
+        if (driveEnabled && "rdp".equals(protocol)) {
+            setDefault(config, "enable-drive", "true");
+            setDefault(config, "drive-path", drivePath);
+            setDefault(config, "create-drive-path", "true");
+            setDefault(config, "drive-name", driveName);
+        }
+    }
+
+    private void applySftp(GuacamoleConfiguration config, String protocol) {
+        if (!"ssh".equals(protocol)) {
+            // RDP/VNC 的 SFTP 是到目标主机的另一条 SSH 连接，沿用同一组账号
+            String username = config.getParameter("username");
+            if (username == null) {
+                logger.debug("SFTP not enabled for {} connection without username", protocol);
+                return;
+            }
+            setDefault(config, "sftp-hostname", config.getParameter("hostname"));
+            setDefault(config, "sftp-port", String.valueOf(sftpPort));
+            setDefault(config, "sftp-username", username);
+            String password = config.getParameter("password");
+            if (password != null) {
+                setDefault(config, "sftp-password", password);
+            }
+            if (sftpDirectory != null) {
+                setDefault(config, "sftp-directory", sftpDirectory);
+            }
+        }
+        setDefault(config, "enable-sftp", "true");
+        if (sftpRootDirectory != null) {
+            setDefault(config, "sftp-root-directory", sftpRootDirectory);
+        }
+    }
+
+    private static void setDefault(GuacamoleConfiguration config, String name, String value) {
+        if (config.getParameter(name) == null) {
+            config.setParameter(name, value);
+        }
+    }
+
+    /**
+     * 包装隧道以支持流式传输，隧道关闭时自动注销；只有 owner 本人能通过 REST 接口访问
+     */
+    public TransferTunnel track(GuacamoleTunnel tunnel, AuthenticatedUser owner) {
+        TransferTunnel transferTunnel = new TransferTunnel(tunnel, owner);
+        tunnels.put(tunnel.getUUID().toString(), transferTunnel);
+        return transferTunnel;
+    }
+
+    /**
+     * 查找 owner 打开的隧道，不存在或属于其他登录时抛出 GuacamoleResourceNotFoundException
+     */
+    public TransferTunnel get(String tunnelUUID, AuthenticatedUser owner) throws GuacamoleException {
+        TransferTunnel tunnel = tunnels.get(tunnelUUID);
+        // DynamicAuthenticatedUser.equals 不区分登录，按实例比较
+        if (tunnel == null || tunnel.owner != owner) {
+            throw new GuacamoleResourceNotFoundException("No such tunnel.");
+        }
+        return tunnel;
+    }
+
+    /**
+     * 扩展卸载时让所有进行中的传输立即失败，等待 blob/ack 的请求线程随之返回；隧道本身由 Web 应用关闭
+     */
+    public void shutdown() {
+        for (TransferTunnel tunnel : tunnels.values()) {
+            tunnel.abort();
+        }
+    }
+
+    /**
+     * 一个被扩展接管的流：下载方向收 blob/end，上传方向收 ack
+     */
+    private static final class Stream {
+
+        final boolean acknowledged;
+
+        // 流控保证每个流最多一个 blob 或 ack 在途，队列只用于读线程与传输线程之间的交接
+        final BlockingQueue<Object> signals = new ArrayBlockingQueue<>(4);
+
+        // 队列溢出后置位，传输线程取到的任何信号都视为失败
+        volatile boolean overrun;
+
+        Stream(boolean acknowledged) {
+            this.acknowledged = acknowledged;
+        }
+
+        /**
+         * 只在读线程和隧道关闭时调用，不阻塞；对端不遵守流控导致溢出时丢弃已排队的信号并让传输失败，
+         * 不能丢掉其中一块后继续传输
+         */
+        void signal(Object signal) {
+            if (!signals.offer(signal)) {
+                overrun = true;
+                signals.clear();
+                signals.offer(OVERRUN);
+            }
+        }
+    }
+
+    private static final class Ack {
+        final String message;
+        final int status;
+
+        Ack(String message, int status) {
+            this.message = message;
+            this.status = status;
+        }
+    }
+
+    public final class TransferTunnel extends DelegatingGuacamoleTunnel {
+
+        // guacd 输出流与客户端输入流的索引互相独立，分开保存
+        private final Map<String, Stream> downloads = new ConcurrentHashMap<>();
+        private final Map<String, Stream> uploads = new ConcurrentHashMap<>();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AuthenticatedUser owner;
+
+        TransferTunnel(GuacamoleTunnel tunnel, AuthenticatedUser owner) {
+            super(tunnel);
+            this.owner = owner;
+        }
+
+        @Override
+        public GuacamoleReader acquireReader() {
+            final GuacamoleReader reader = super.acquireReader();
+            return new GuacamoleReader() {
+
+                @Override
+                public boolean available() throws GuacamoleException {
+                    return reader.available();
+                }
+
+                /**
+                 * 截获的指令不转发，继续读到下一条真实指令或流结束为止，不返回空块：
+                 * Web 应用的 WebSocket 隧道会把空块作为空消息发出，浏览器端按不完整指令断开整个会话。
+                 * guacd 的每一帧以 sync 结束，blob 之后等待的只是同一帧剩下的指令，已合并的画面不会因此滞留
+                 */
+                @Override
+                public char[] read() throws GuacamoleException {
+                    char[] instruction;
+                    do {
+                        instruction = reader.read();
+                    } while (instruction != null && intercept(instruction));
+                    return instruction;
+                }
+
+                @Override
+                public GuacamoleInstruction readInstruction() throws GuacamoleException {
+                    GuacamoleInstruction instruction;
+                    while ((instruction = reader.readInstruction()) != null
+                            && intercept(instruction.getOpcode(), instruction.getArgs())) {
+                        // 截获的指令不转发
+                    }
+                    return instruction;
+                }
+            };
+        }
+
+        /**
+         * 没有进行中的传输时只有两次 isEmpty 判断；有传输时也只解析 blob/end/ack 指令的流索引
+         */
+        private boolean intercept(char[] instruction) {
+            if (!downloads.isEmpty()) {
+                if (startsWith(instruction, BLOB)) {
+                    Stream stream = downloads.get(element(instruction, 1));
+                    if (stream != null) {
+                        stream.signal(element(instruction, 2));
+                        return true;
+                    }
+                } else if (startsWith(instruction, END)) {
+                    Stream stream = downloads.get(element(instruction, 1));
+                    if (stream != null) {
+                        stream.signal(STREAM_END);
+                        return true;
+                    }
+                }
+            }
+            if (!uploads.isEmpty() && startsWith(instruction, ACK)) {
+                Stream stream = uploads.get(element(instruction, 1));
+                if (stream != null) {
+                    if (stream.acknowledged) {
+                        stream.signal(new Ack(element(instruction, 2), parseStatus(element(instruction, 3))));
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean intercept(String opcode, List<String> args) {
+            if (args.isEmpty()) {
+                return false;
+            }
+            if ("blob".equals(opcode) && args.size() >= 2) {
+                Stream stream = downloads.get(args.get(0));
+                if (stream != null) {
+                    stream.signal(args.get(1));
+                    return true;
+                }
+            } else if ("end".equals(opcode)) {
+                Stream stream = downloads.get(args.get(0));
+                if (stream != null) {
+                    stream.signal(STREAM_END);
+                    return true;
+                }
+            } else if ("ack".equals(opcode) && args.size() >= 3) {
+                Stream stream = uploads.get(args.get(0));
+                if (stream != null) {
+                    if (stream.acknowledged) {
+                        stream.signal(new Ack(args.get(1), parseStatus(args.get(2))));
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 接收 guacd 输出流（file 指令打开的流）并写入 out，每写出并 flush 一块才确认下一块
+         *
+         * @return 传输的字节数
+         */
+        public long download(String index, OutputStream out) throws GuacamoleException {
+            Stream stream = open(downloads, index, true);
+            byte[] buffer = new byte[chunkSize];
+            long total = 0;
+            try {
+                // 确认接收该流，guacd 开始发送第一块
+                sendAck(index, "OK", GuacamoleStatus.SUCCESS);
+
+                Object signal;
+                while ((signal = next(stream, index)) != STREAM_END) {
+                    String data = (String) signal;
+                    int capacity = (data.length() + 3) / 4 * 3;
+                    if (buffer.length < capacity) {
+                        buffer = new byte[capacity];
+                    }
+                    int length = decode(data, buffer);
+                    out.write(buffer, 0, length);
+                    out.flush();
+                    total += length;
+                    sendAck(index, "OK", GuacamoleStatus.SUCCESS);
+                }
+                logger.info("📥 Downloaded {} bytes from stream {} of tunnel {}", total, index, getUUID());
+                return total;
+            } catch (IOException e) {
+                // 下载方已断开，通知 guacd 放弃该流
+                sendAck(index, "Transfer aborted", GuacamoleStatus.RESOURCE_CLOSED);
+                throw new GuacamoleClientException("Download aborted after " + total + " bytes", e);
+            } catch (GuacamoleException e) {
+                // 超时或溢出，同样通知 guacd 放弃该流；隧道已关闭时不再写入
+                if (isOpen()) {
+                    sendAck(index, "Transfer aborted", GuacamoleStatus.RESOURCE_CLOSED);
+                }
+                throw e;
+            } finally {
+                downloads.remove(index, stream);
+            }
+        }
+
+        /**
+         * 把 in 的内容写入客户端已打开的输入流（file/put），每块等待 guacd 的 ack
+         *
+         * @return 传输的字节数
+         */
+        public long upload(String index, InputStream in) throws GuacamoleException {
+            return send(index, in, null);
+        }
+
+        /**
+         * 在客户端分配（尚未在协议中打开）的流索引上发送 clipboard 指令和内容。
+         * 由服务端发送 clipboard 指令，保证它与后续 blob 在同一条写入路径上按顺序到达 guacd；
+         * end 由客户端在请求完成后发送，流索引随之释放。
+         * guacd 不确认剪贴板 blob，只按块让出写锁，超过剪贴板上限的部分不再读取
+         *
+         * @return 传输的字节数
+         */
+        public long pasteClipboard(String index, String mimetype, InputStream in) throws GuacamoleException {
+            if (mimetype == null || mimetype.isEmpty()) {
+                throw new GuacamoleClientException("Missing clipboard mimetype.");
+            }
+            return send(index, in, mimetype);
+        }
+
+        /**
+         * 文件流（clipboardMimetype 为 null）逐块等待 ack 并在结束时发送 end；剪贴板先打开流，按上限截断
+         */
+        private long send(String index, InputStream in, String clipboardMimetype) throws GuacamoleException {
+            boolean acknowledged = clipboardMimetype == null;
+            long limit = acknowledged ? Long.MAX_VALUE : clipboardLimit;
+            Stream stream = open(uploads, index, acknowledged);
+            byte[] chunk = new byte[chunkSize];
+            char[] instruction = new char[32 + 2 * index.length() + (chunkSize + 2) / 3 * 4];
+            long total = 0;
+            try {
+                if (clipboardMimetype != null) {
+                    write(new GuacamoleInstruction("clipboard", index, clipboardMimetype));
+                }
+                int length;
+                while (total < limit && (length = readChunk(in, chunk, (int) Math.min(chunk.length, limit - total))) > 0) {
+                    yieldToWriters();
+                    write(instruction, encodeBlob(index, chunk, length, instruction));
+                    total += length;
+
+                    if (acknowledged) {
+                        Ack ack = (Ack) next(stream, index);
+                        if (ack.status != GuacamoleStatus.SUCCESS.getGuacamoleStatusCode()) {
+                            GuacamoleStatus status = GuacamoleStatus.fromGuacamoleStatusCode(ack.status);
+                            throw (status != null ? status : GuacamoleStatus.SERVER_ERROR).toException(ack.message);
+                        }
+                    }
+                }
+                if (total >= limit) {
+                    logger.info("✂️ Clipboard paste truncated to {} bytes on tunnel {}", limit, getUUID());
+                }
+                logger.info("📤 Sent {} bytes to stream {} of tunnel {}", total, index, getUUID());
+                return total;
+            } catch (IOException e) {
+                throw new GuacamoleClientException("Upload aborted after " + total + " bytes", e);
+            } finally {
+                uploads.remove(index, stream);
+                if (acknowledged && isOpen()) {
+                    try {
+                        write(new GuacamoleInstruction("end", index));
+                    } catch (GuacamoleException e) {
+                        logger.debug("Failed to end stream {}: {}", index, e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private Stream open(Map<String, Stream> streams, String index, boolean acknowledged) throws GuacamoleException {
+            if (index.isEmpty() || index.length() > 9 || !index.chars().allMatch(Character::isDigit)) {
+                throw new GuacamoleClientException("Invalid stream index: " + index);
+            }
+            Stream stream = new Stream(acknowledged);
+            if (streams.putIfAbsent(index, stream) != null) {
+                throw new GuacamoleResourceConflictException("Stream " + index + " is already being transferred.");
+            }
+            if (closed.get()) {
+                streams.remove(index, stream);
+                throw new GuacamoleConnectionClosedException("Tunnel is closed.");
+            }
+            return stream;
+        }
+
+        private Object next(Stream stream, String index) throws GuacamoleException {
+            Object signal;
+            try {
+                signal = stream.signals.poll(ackTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GuacamoleServerException("Interrupted while transferring stream " + index, e);
+            }
+            if (signal == null) {
+                throw new GuacamoleUpstreamTimeoutException("No response for stream " + index + " within " + ackTimeout + " ms.");
+            }
+            if (signal == TUNNEL_CLOSED) {
+                throw new GuacamoleConnectionClosedException("Tunnel closed during transfer.");
+            }
+            if (signal == OVERRUN || stream.overrun) {
+                logger.warn("⚠️ Transfer stream {} of tunnel {} overrun, peer is not honoring flow control", index, getUUID());
+                throw new GuacamoleUpstreamException("Stream " + index + " overrun: peer is not honoring flow control.");
+            }
+            return signal;
+        }
+
+        private void sendAck(String index, String message, GuacamoleStatus status) throws GuacamoleException {
+            write(new GuacamoleInstruction("ack", index, message,
+                    Integer.toString(status.getGuacamoleStatusCode())));
+        }
+
+        private void write(GuacamoleInstruction instruction) throws GuacamoleException {
+            GuacamoleWriter writer = acquireWriter();
+            try {
+                writer.writeInstruction(instruction);
+            } finally {
+                releaseWriter();
+            }
+        }
+
+        private void write(char[] instruction, int length) throws GuacamoleException {
+            GuacamoleWriter writer = acquireWriter();
+            try {
+                writer.write(instruction, 0, length);
+            } finally {
+                releaseWriter();
+            }
+        }
+
+        /**
+         * 有键鼠输入在等写锁时先让它们写完，大块上传不会推迟交互
+         */
+        private void yieldToWriters() {
+            long deadline = System.nanoTime() + YIELD_NANOS;
+            while (hasQueuedWriterThreads() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            }
+        }
+
+        @Override
+        public void close() throws GuacamoleException {
+            try {
+                super.close();
+            } finally {
+                abort();
+            }
+        }
+
+        /**
+         * 注销隧道并让进行中的传输失败，之后不再接受新的传输
+         */
+        private void abort() {
+            if (closed.compareAndSet(false, true)) {
+                tunnels.remove(getUUID().toString(), this);
+                for (Stream stream : downloads.values()) {
+                    stream.signal(TUNNEL_CLOSED);
+                }
+                for (Stream stream : uploads.values()) {
+                    stream.signal(TUNNEL_CLOSED);
+                }
+            }
+        }
+    }
+
+    private static int readChunk(InputStream in, byte[] chunk, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = in.read(chunk, filled, length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static int parseStatus(String status) {
+        try {
+            return Integer.parseInt(status);
+        } catch (NumberFormatException e) {
+            return GuacamoleStatus.SERVER_ERROR.getGuacamoleStatusCode();
+        }
+    }
+
+    private static boolean startsWith(char[] instruction, char[] prefix) {
+        if (instruction.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (instruction[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 取指令的第 n 个元素（0 为操作码），指令格式为 长度.值,长度.值,...;，长度按码点计
+     */
+    private static String element(char[] instruction, int n) {
+        int pos = 0;
+        for (int i = 0; pos < instruction.length; i++) {
+            int length = 0;
+            char c;
+            while (pos < instruction.length && (c = instruction[pos++]) != '.') {
+                length = length * 10 + (c - '0');
+            }
+            int start = pos;
+            for (int k = 0; k < length && pos < instruction.length; k++) {
+                pos += Character.isHighSurrogate(instruction[pos]) ? 2 : 1;
+            }
+            if (i == n) {
+                return new String(instruction, start, Math.min(pos, instruction.length) - start);
+            }
+            if (pos >= instruction.length || instruction[pos++] == ';') {
+                break;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * 把 4.blob,<索引>,<base64>; 直接编码进复用的字符数组，返回使用的长度
+     */
+    private static int encodeBlob(String index, byte[] data, int length, char[] out) {
+        int pos = 0;
+        System.arraycopy(BLOB, 0, out, 0, BLOB.length);
+        pos += BLOB.length;
+        pos = writeLength(index.length(), out, pos);
+        index.getChars(0, index.length(), out, pos);
+        pos += index.length();
+        out[pos++] = ',';
+        pos = writeLength((length + 2) / 3 * 4, out, pos);
+
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int v = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out[pos++] = BASE64[v >>> 18];
+            out[pos++] = BASE64[(v >>> 12) & 0x3f];
+            out[pos++] = BASE64[(v >>> 6) & 0x3f];
+            out[pos++] = BASE64[v & 0x3f];
+        }
+        int remaining = length - i;
+        if (remaining > 0) {
+            int v = (data[i] & 0xff) << 16 | (remaining == 2 ? (data[i + 1] & 0xff) << 8 : 0);
+            out[pos++] = BASE64[v >>> 18];
+            out[pos++] = BASE64[(v >>> 12) & 0x3f];
+            out[pos++] = remaining == 2 ? BASE64[(v >>> 6) & 0x3f] : '=';
+            out[pos++] = '=';
+        }
+        out[pos++] = ';';
+        return pos;
+    }
+
+    private static int writeLength(int length, char[] out, int pos) {
+        String digits = Integer.toString(length);
+        digits.getChars(0, digits.length(), out, pos);
+        pos += digits.length();
+        out[pos++] = '.';
+        return pos;
+    }
+
+    /**
+     * base64 解码到复用的缓冲区，返回字节数
+     */
+    private static int decode(String data, byte[] out) throws GuacamoleServerException {
+        int length = data.length();
+        while (length > 0 && data.charAt(length - 1) == '=') {
+            length--;
+        }
+        int pos = 0;
+        int bits = 0;
+        int accumulator = 0;
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                throw new GuacamoleServerException("Invalid base64 data in blob.");
+            }
+            accumulator = (accumulator << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte) (accumulator >>> bits);
+                accumulator &= (1 << bits) - 1;
+            }
+        }
+        return pos;
+    }
+}
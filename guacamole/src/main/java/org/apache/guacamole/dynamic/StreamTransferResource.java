@@ -0,0 +1,85 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.AuthenticatedUser;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 动态连接的文件与剪贴板传输接口
+ *
+ * 由 DynamicUserContext.getResource 返回，Web 应用挂载在 /api/session/ext/dynamic-connection 下，
+ * 与 Web 应用自带的 /api/session/tunnels/{隧道}/streams/{索引} 用法相同，页面端由 dynamic-transfer.js 调用。
+ * 传输在本请求的线程上进行，隧道读线程只负责把截获的 blob/ack 交给这里，画面更新不受慢速客户端影响。
+ */
+public class StreamTransferResource {
+
+    private final StreamTransferManager transfers;
+    private final AuthenticatedUser owner;
+
+    public StreamTransferResource(StreamTransferManager transfers, AuthenticatedUser owner) {
+        this.transfers = transfers;
+        this.owner = owner;
+    }
+
+    /**
+     * 隧道是否支持经本接口传输；不是本次登录的动态连接隧道时返回 404，页面端退回 Web 应用自带的方式
+     */
+    @GET
+    @Path("transfers/tunnels/{tunnel}")
+    public Response getTunnel(@PathParam("tunnel") String tunnelUUID) throws GuacamoleException {
+        transfers.get(tunnelUUID, owner);
+        return Response.noContent().build();
+    }
+
+    /**
+     * 下载 guacd 以 file 指令（或 SFTP 文件浏览）打开的流，路径中的文件名只用于浏览器保存
+     */
+    @GET
+    @Path("transfers/tunnels/{tunnel}/streams/{index}/{filename}")
+    public Response download(@PathParam("tunnel") String tunnelUUID, @PathParam("index") final String index)
+            throws GuacamoleException {
+        final StreamTransferManager.TransferTunnel tunnel = transfers.get(tunnelUUID, owner);
+        StreamingOutput output = out -> {
+            try {
+                tunnel.download(index, out);
+            } catch (GuacamoleException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        };
+        // 与 Web 应用相同，始终以二进制返回，浏览器在隐藏 iframe 中保存而不是显示
+        return Response.ok(output, MediaType.APPLICATION_OCTET_STREAM).build();
+    }
+
+    /**
+     * 把请求体写入客户端以 file 指令打开、guacd 已确认的流，完成后发送 end
+     */
+    @POST
+    @Path("transfers/tunnels/{tunnel}/streams/{index}/{filename}")
+    @Consumes(MediaType.WILDCARD)
+    public void upload(@PathParam("tunnel") String tunnelUUID, @PathParam("index") String index,
+                       InputStream data) throws GuacamoleException {
+        transfers.get(tunnelUUID, owner).upload(index, data);
+    }
+
+    /**
+     * 在客户端分配的流索引上发送剪贴板内容，mimetype 为剪贴板数据类型
+     */
+    @POST
+    @Path("transfers/tunnels/{tunnel}/clipboard/{index}")
+    @Consumes(MediaType.WILDCARD)
+    public void paste(@PathParam("tunnel") String tunnelUUID, @PathParam("index") String index,
+                      @QueryParam("type") String mimetype, InputStream data) throws GuacamoleException {
+        transfers.get(tunnelUUID, owner).pasteClipboard(index, mimetype, data);
+    }
+}
@@ -0,0 +1,213 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUpstreamUnavailableException;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 目标主机可达性探测缓存
+ *
+ * token 校验时异步发起 TCP 探测，结果按可达/不可达分别缓存不同的 TTL；
+ * 建立 guacd 连接前查询缓存，已知不可达的目标直接拒绝，不再占用 guacd 进程和隧道线程。
+ * DNS 解析结果也单独缓存，避免每次探测都走系统解析。
+ * 探测从 Web 应用所在的网络发出，而真正连接目标的是 guacd；两者网络不同时
+ * （例如 guacd 使用 network_mode: host 而 Web 容器在桥接网络中）探测结果不可信，
+ * 因此默认关闭，只有确认两者看到的网络一致时才应开启。
+ */
+public class TargetReachabilityCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TargetReachabilityCache.class);
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final int PROBE_THREADS = 4;
+    private static final int PROBE_QUEUE_SIZE = 1000;
+
+    private static class Probe {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE;
+    }
+
+    private static class DnsEntry {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        DnsEntry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final boolean enabled;
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final int probeTimeout;
+    private final long dnsTtl;
+
+    private final Map<String, Probe> probes = new ConcurrentHashMap<>();
+    private final Map<String, DnsEntry> dnsCache = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    public TargetReachabilityCache() {
+        this.enabled = DynamicConnectionProperties.get(DynamicConnectionProperties.REACHABILITY_ENABLED, false);
+        this.positiveTtl = DynamicConnectionProperties.get(DynamicConnectionProperties.REACHABILITY_POSITIVE_TTL, 30000);
+        this.negativeTtl = DynamicConnectionProperties.get(DynamicConnectionProperties.REACHABILITY_NEGATIVE_TTL, 10000);
+        this.probeTimeout = DynamicConnectionProperties.get(DynamicConnectionProperties.REACHABILITY_PROBE_TIMEOUT, 2000);
+        this.dnsTtl = DynamicConnectionProperties.get(DynamicConnectionProperties.REACHABILITY_DNS_TTL, 60000);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(PROBE_THREADS, PROBE_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(PROBE_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "dynamic-reachability-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 异步探测目标，已有未过期结果或正在探测时直接复用
+     */
+    public CompletableFuture<Boolean> probeAsync(String hostname, int port) {
+        if (!enabled || hostname == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        final String key = hostname.toLowerCase() + ":" + port;
+        long now = System.currentTimeMillis();
+        Probe existing = probes.get(key);
+        if (existing != null && existing.expiresAt > now) {
+            return existing.result;
+        }
+
+        final Probe probe = new Probe();
+        Probe current = probes.compute(key, (k, old) ->
+                old != null && old.expiresAt > System.currentTimeMillis() ? old : probe);
+        if (current != probe) {
+            return current.result;
+        }
+
+        if (probes.size() > MAX_ENTRIES) {
+            probes.values().removeIf(p -> p.expiresAt <= System.currentTimeMillis());
+        }
+
+        try {
+            executor.execute(() -> {
+                boolean reachable = probe(hostname, port);
+                probe.expiresAt = System.currentTimeMillis() + (reachable ? positiveTtl : negativeTtl);
+                probe.result.complete(reachable);
+                logger.debug("🔍 Reachability of {}: {}", key, reachable);
+            });
+        } catch (RejectedExecutionException e) {
+            // 探测线程池已满，不缓存，放行
+            probes.remove(key, probe);
+            probe.result.complete(true);
+        }
+        return probe.result;
+    }
+
+    /**
+     * 连接 guacd 前检查目标：已知不可达立即失败，探测中则最多等待一次探测时长
+     */
+    public void awaitReachable(GuacamoleConfiguration config) throws GuacamoleException {
+        if (!enabled) {
+            return;
+        }
+
+        String hostname = config.getParameter("hostname");
+        int port;
+        try {
+            port = Integer.parseInt(config.getParameter("port"));
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        boolean reachable;
+        try {
+            reachable = probeAsync(hostname, port).get(probeTimeout + 500L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException | TimeoutException e) {
+            return;
+        }
+
+        if (!reachable) {
+            logger.warn("🚫 Rejecting connection to unreachable target {}:{}", hostname, port);
+            throw new GuacamoleUpstreamUnavailableException("Target host is unreachable: " + hostname + ":" + port);
+        }
+    }
+
+    /**
+     * 不等待探测，只查询已完成且未过期的结果；未知或探测中返回 false
+     */
+    public boolean isKnownUnreachable(String hostname, int port) {
+        if (!enabled || hostname == null) {
+            return false;
+        }
+        Probe probe = probes.get(hostname.toLowerCase() + ":" + port);
+        return probe != null && probe.expiresAt > System.currentTimeMillis()
+                && probe.result.isDone() && !probe.result.getNow(true);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private boolean probe(String hostname, int port) {
+        InetAddress[] addresses = resolve(hostname);
+        if (addresses == null) {
+            return false;
+        }
+
+        for (InetAddress address : addresses) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address, port), probeTimeout);
+                return true;
+            } catch (IOException e) {
+                logger.debug("Probe of {}:{} via {} failed: {}", hostname, port, address, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private InetAddress[] resolve(String hostname) {
+        long now = System.currentTimeMillis();
+        DnsEntry entry = dnsCache.get(hostname);
+        if (entry != null && entry.expiresAt > now) {
+            return entry.addresses;
+        }
+
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(hostname);
+        } catch (UnknownHostException e) {
+            logger.warn("⚠️ Cannot resolve target host {}", hostname);
+            addresses = null;
+        }
+
+        if (dnsCache.size() > MAX_ENTRIES) {
+            dnsCache.values().removeIf(e -> e.expiresAt <= now);
+        }
+        dnsCache.put(hostname, new DnsEntry(addresses, now + (addresses != null ? dnsTtl : negativeTtl)));
+        return addresses;
+    }
+}
@@ -0,0 +1,268 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 节点级隧道出口带宽调度
+ *
+ * 所有隧道共享一个节点令牌桶；带宽不足时按加权公平排队（SCFQ 虚拟完成时间）依次放行，
+ * 小的交互帧排在批量帧之前。每个会话另有独立的限速桶，先于节点排队生效。
+ * 由 track 包装动态连接的隧道，在隧道读取层按发往客户端的指令字符数扣费，
+ * Web 应用自带的 WebSocket 隧道和 HTTP 隧道都经过这里；额度不足时读线程等待，不再继续读取该隧道。
+ * 扣费发生在读取层，传输层压缩（WebSocket permessage-deflate、HTTP gzip）之前，按未压缩大小计算。
+ */
+public class TunnelBandwidthScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TunnelBandwidthScheduler.class);
+
+    /** 连接配置中携带的会话限速参数（KB/s），来自 token 的 bandwidthLimit */
+    static final String LIMIT_PARAMETER = "dynamic-bandwidth-limit";
+
+    // 连续有数据可读时最多攒这么多字符扣一次费，长时间的批量输出也能被及时调度
+    private static final int MAX_BATCH_CHARS = 65536;
+
+    // 节点桶最多攒下 100ms 的额度，避免空闲后一次性突发
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MIN_BURST_BYTES = 65536;
+
+    public static class Session {
+        private final int weight;
+        private final long capBytesPerSecond;
+        private double lastFinish;
+        private double capTokens;
+        private long capRefilledAt = System.nanoTime();
+
+        Session(int weight, long capBytesPerSecond) {
+            this.weight = Math.max(1, weight);
+            this.capBytesPerSecond = capBytesPerSecond;
+            this.capTokens = capBytesPerSecond * (double) BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public long getCapBytesPerSecond() {
+            return capBytesPerSecond;
+        }
+
+        /**
+         * 扣除会话额度，返回需要等待的纳秒数；只由持有隧道读锁的线程调用，
+         * HTTP 隧道的长轮询会在不同请求线程之间交接读锁，加锁保证额度状态可见
+         */
+        private synchronized long consumeCap(int bytes) {
+            if (capBytesPerSecond <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            double burst = capBytesPerSecond * (double) BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+            capTokens = Math.min(burst, capTokens + (now - capRefilledAt) * capBytesPerSecond / 1e9);
+            capRefilledAt = now;
+            capTokens -= bytes;
+            return capTokens >= 0 ? 0 : (long) (-capTokens * 1e9 / capBytesPerSecond);
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final boolean interactive;
+        final double finish;
+        final long sequence;
+
+        Waiter(boolean interactive, double finish, long sequence) {
+            this.interactive = interactive;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (interactive != other.interactive) {
+                return interactive ? -1 : 1;
+            }
+            int order = Double.compare(finish, other.finish);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final boolean enabled;
+    private final int defaultSessionLimit;
+    private final int interactiveThreshold;
+    private final long nodeBytesPerSecond;
+    private final double burstBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private double virtualTime;
+    private long sequence;
+
+    public TunnelBandwidthScheduler() {
+        this.enabled = DynamicConnectionProperties.get(DynamicConnectionProperties.BANDWIDTH_ENABLED, false);
+        this.defaultSessionLimit = DynamicConnectionProperties.get(DynamicConnectionProperties.BANDWIDTH_SESSION_LIMIT, 0);
+        this.interactiveThreshold = DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_INTERACTIVE_THRESHOLD, 512);
+        int nodeLimit = DynamicConnectionProperties.get(DynamicConnectionProperties.BANDWIDTH_NODE_LIMIT, 0);
+        this.nodeBytesPerSecond = nodeLimit * 1024L;
+        this.burstBytes = Math.max(MIN_BURST_BYTES, nodeBytesPerSecond * (double) BURST_NANOS / TimeUnit.SECONDS.toNanos(1));
+        this.tokens = burstBytes;
+        if (enabled) {
+            logger.info("📶 Tunnel bandwidth scheduling enabled, node limit: {} KB/s", nodeLimit > 0 ? nodeLimit : "unlimited");
+        }
+    }
+
+    /**
+     * 按协议配置和 token 中的限速包装隧道：token 的 dynamic-bandwidth-limit 优先于协议配置。
+     * 未开启调度时原样返回
+     */
+    public GuacamoleTunnel track(GuacamoleTunnel tunnel, GuacamoleConfiguration config) {
+        if (!enabled) {
+            return tunnel;
+        }
+
+        String protocol = config.getProtocol();
+        int limit = DynamicConnectionProperties.get(DynamicConnectionProperties.bandwidthSessionLimit(protocol),
+                defaultSessionLimit);
+        String tokenLimit = config.getParameter(LIMIT_PARAMETER);
+        if (tokenLimit != null) {
+            try {
+                limit = Integer.parseInt(tokenLimit);
+            } catch (NumberFormatException e) {
+                logger.warn("⚠️ Invalid bandwidth limit in connection: {}", tokenLimit);
+            }
+        }
+        int weight = DynamicConnectionProperties.get(DynamicConnectionProperties.bandwidthWeight(protocol), 1);
+        return new ScheduledTunnel(tunnel, new Session(weight, limit * 1024L));
+    }
+
+    /**
+     * 读取层扣费：一批指令在 reader 暂时没有后续数据（调用方随即 flush）或攒满 MAX_BATCH_CHARS 时结算，
+     * 这一批不超过交互阈值时按交互帧排队。结算在返回这一批的最后一条指令之前进行
+     */
+    private final class ScheduledTunnel extends DelegatingGuacamoleTunnel {
+
+        private final Session session;
+
+        // 只由持有读锁的线程访问
+        private int pending;
+
+        ScheduledTunnel(GuacamoleTunnel tunnel, Session session) {
+            super(tunnel);
+            this.session = session;
+        }
+
+        @Override
+        public GuacamoleReader acquireReader() {
+            final GuacamoleReader reader = super.acquireReader();
+            return new GuacamoleReader() {
+
+                @Override
+                public boolean available() throws GuacamoleException {
+                    return reader.available();
+                }
+
+                @Override
+                public char[] read() throws GuacamoleException {
+                    char[] instruction = reader.read();
+                    if (instruction != null) {
+                        account(reader, instruction.length);
+                    }
+                    return instruction;
+                }
+
+                @Override
+                public GuacamoleInstruction readInstruction() throws GuacamoleException {
+                    GuacamoleInstruction instruction = reader.readInstruction();
+                    if (instruction != null) {
+                        account(reader, instruction.toString().length());
+                    }
+                    return instruction;
+                }
+            };
+        }
+
+        private void account(GuacamoleReader reader, int length) throws GuacamoleException {
+            pending += length;
+            if (pending < MAX_BATCH_CHARS && reader.available()) {
+                return;
+            }
+            int batch = pending;
+            pending = 0;
+            try {
+                charge(session, batch, batch <= interactiveThreshold);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 为发往客户端的字节扣费，额度不足时阻塞到轮到该会话为止
+     */
+    void charge(Session session, int bytes, boolean interactive) throws InterruptedException {
+        if (bytes <= 0) {
+            return;
+        }
+
+        long capWait = session.consumeCap(bytes);
+        if (capWait > 0) {
+            TimeUnit.NANOSECONDS.sleep(capWait);
+        }
+
+        if (nodeBytesPerSecond <= 0) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            double finish = Math.max(virtualTime, session.lastFinish) + (double) bytes / session.weight;
+            session.lastFinish = finish;
+            Waiter waiter = new Waiter(interactive, finish, sequence++);
+            queue.add(waiter);
+            try {
+                while (true) {
+                    refill();
+                    // 交互帧可以多透支一个突发额度，不必等批量帧欠下的额度还清
+                    if (queue.peek() == waiter && tokens >= (interactive ? -burstBytes : 0)) {
+                        // 允许透支：大帧一次放行，欠下的额度由后续排队者等待偿还
+                        queue.poll();
+                        tokens -= bytes;
+                        virtualTime = waiter.finish;
+                        turn.signalAll();
+                        return;
+                    }
+                    if (queue.peek() == waiter) {
+                        double floor = interactive ? -burstBytes : 0;
+                        turn.awaitNanos((long) ((floor - tokens) * 1e9 / nodeBytesPerSecond) + 1);
+                    } else {
+                        turn.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                queue.remove(waiter);
+                turn.signalAll();
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burstBytes, tokens + (now - refilledAt) * nodeBytesPerSecond / 1e9);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,79 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 隧道读流的合并预算
+ *
+ * Web 应用自带的 WebSocket 隧道和 HTTP 隧道都在 reader.available() 为 false 时发送已合并的指令，
+ * 这里包装动态连接隧道的 reader：合并超过大小或时间预算时让 available() 返回 false，促使端点立即发送；
+ * 没有后续数据时与原来一样立即发送，小的交互帧不会被推迟。只会让发送提前，不会额外等待。
+ */
+public class TunnelCoalescer {
+
+    private final int coalesceBytes;
+    private final long coalesceDelayNanos;
+
+    public TunnelCoalescer() {
+        this.coalesceBytes = DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_COALESCE_BYTES, 16384);
+        this.coalesceDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+                DynamicConnectionProperties.get(DynamicConnectionProperties.TUNNEL_COALESCE_DELAY, 5));
+    }
+
+    public GuacamoleTunnel track(GuacamoleTunnel tunnel) {
+        return new DelegatingGuacamoleTunnel(tunnel) {
+
+            // 上次发送之后读出的字符数和第一条的读取时间，只由持有读锁的线程访问
+            private int pending;
+            private long pendingSince;
+
+            @Override
+            public GuacamoleReader acquireReader() {
+                final GuacamoleReader reader = super.acquireReader();
+                return new GuacamoleReader() {
+
+                    @Override
+                    public boolean available() throws GuacamoleException {
+                        if (pending >= coalesceBytes || System.nanoTime() - pendingSince >= coalesceDelayNanos
+                                || !reader.available()) {
+                            pending = 0;
+                            return false;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public char[] read() throws GuacamoleException {
+                        char[] instruction = reader.read();
+                        if (instruction != null) {
+                            append(instruction.length);
+                        }
+                        return instruction;
+                    }
+
+                    @Override
+                    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+                        GuacamoleInstruction instruction = reader.readInstruction();
+                        if (instruction != null) {
+                            append(instruction.toString().length());
+                        }
+                        return instruction;
+                    }
+                };
+            }
+
+            private void append(int length) {
+                if (pending == 0) {
+                    pendingSince = System.nanoTime();
+                }
+                pending += length;
+            }
+        };
+    }
+}
@@ -0,0 +1,35 @@
+package org.apache.guacamole.dynamic;
+
+/**
+ * 隧道 I/O 执行器
+ *
+ * Java 8 版本不做任何转移，读写仍在容器线程上同步执行。
+ * Java 21 运行时会加载 META-INF/versions/21 下的同名实现，把 guacd 读写放到虚拟线程上。
+ * 只由 DynamicConnectionServlet 使用，Web 应用自带的隧道端点的线程模型由 Web 应用和容器决定。
+ */
+public class TunnelIoExecutor {
+
+    public TunnelIoExecutor(int maxConcurrent) {
+    }
+
+    /**
+     * 当前运行时是否支持把隧道 I/O 转移出容器线程
+     */
+    public boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * 尝试异步执行任务，返回 false 时由调用方在当前线程同步执行
+     */
+    public boolean tryExecute(Runnable task) {
+        return false;
+    }
+
+    public String getMode() {
+        return "platform";
+    }
+
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,185 @@
+package org.apache.guacamole.dynamic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * HTTP 隧道读流的压缩器
+ *
+ * 每个隧道会话持有一个实例，Deflater 和输出缓冲在多次长轮询响应之间复用，
+ * 每次响应只做 reset。flush 使用 SYNC_FLUSH，浏览器可以边收边解压。
+ * 同一时刻只会被持有隧道读锁的线程使用，因此不做额外同步。
+ * 只由 DynamicConnectionServlet 使用；Web 应用自带的 /tunnel 与 /websocket-tunnel 不经过它，
+ * 那两条路径的压缩由 Tomcat（gzip 压缩、WebSocket permessage-deflate）负责。
+ */
+public class TunnelStreamCompressor {
+
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String name;
+
+        Encoding(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final Encoding encoding;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer;
+
+    public TunnelStreamCompressor(Encoding encoding, int level, int bufferSize) {
+        this.encoding = encoding;
+        // gzip 自己写头尾，deflate 使用 zlib 格式（HTTP 规范中的 deflate）
+        this.deflater = new Deflater(level, encoding == Encoding.GZIP);
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * 根据 Accept-Encoding 选择编码，优先 gzip，不支持时返回 null
+     */
+    public static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String header = acceptEncoding.toLowerCase();
+        if (accepts(header, "gzip")) {
+            return Encoding.GZIP;
+        }
+        if (accepts(header, "deflate")) {
+            return Encoding.DEFLATE;
+        }
+        return null;
+    }
+
+    private static boolean accepts(String header, String coding) {
+        for (String part : header.split(",")) {
+            String[] params = part.trim().split(";");
+            if (params[0].trim().equals(coding)) {
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * 为一次响应开启新的压缩流，关闭返回的流会写出压缩尾并关闭底层流
+     */
+    public OutputStream open(OutputStream out) throws IOException {
+        deflater.reset();
+        crc.reset();
+        if (encoding == Encoding.GZIP) {
+            out.write(GZIP_HEADER);
+        }
+        return new CompressingStream(out);
+    }
+
+    /**
+     * 释放 native zlib 资源，会话结束时调用
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    private class CompressingStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] single = new byte[1];
+        private boolean closed;
+
+        CompressingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (encoding == Encoding.GZIP) {
+                crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            int count;
+            do {
+                count = deflate(Deflater.SYNC_FLUSH);
+            } while (count == buffer.length);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                if (encoding == Encoding.GZIP) {
+                    writeIntLE(crc.getValue());
+                    writeIntLE(deflater.getBytesRead());
+                }
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        private int deflate(int flush) throws IOException {
+            int count = deflater.deflate(buffer, 0, buffer.length, flush);
+            if (count > 0) {
+                out.write(buffer, 0, count);
+            }
+            return count;
+        }
+
+        private void writeIntLE(long value) throws IOException {
+            out.write((int) (value & 0xff));
+            out.write((int) ((value >> 8) & 0xff));
+            out.write((int) ((value >> 16) & 0xff));
+            out.write((int) ((value >> 24) & 0xff));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.apache.guacamole.dynamic;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 扩展热点路径的 JFR 事件（Java 21 版本）
+ *
+ * 所有事件默认关闭（@Enabled(false)），未开启时每个记录点只有一次 isEnabled() 判断。
+ * 开启方式：用 jfr configure 生成包含这些事件的 .jfc，例如
+ *   jfr configure +org.apache.guacamole.dynamic.TokenAuthentication#enabled=true --output dynamic.jfc
+ * 再以 -XX:StartFlightRecording:settings=dynamic.jfc 或 jcmd <pid> JFR.start settings=dynamic.jfc 启动记录。
+ */
+public final class ExtensionEvents {
+
+    @Name("org.apache.guacamole.dynamic.TokenAuthentication")
+    @Label("Token Authentication")
+    @Category({ "Guacamole", "Dynamic Connection" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class TokenAuthenticationEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Protocol")
+        String protocol;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.apache.guacamole.dynamic.TokenDecryption")
+    @Label("Token Decryption")
+    @Category({ "Guacamole", "Dynamic Connection" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class DecryptionEvent extends Event {
+        @Label("Token Length")
+        int tokenLength;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.apache.guacamole.dynamic.StoreOperation")
+    @Label("Connection Store Operation")
+    @Category({ "Guacamole", "Dynamic Connection" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class StoreOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Connection ID")
+        String connectionId;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.apache.guacamole.dynamic.DirectoryLookup")
+    @Label("Directory Lookup")
+    @Category({ "Guacamole", "Dynamic Connection" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class DirectoryLookupEvent extends Event {
+        @Label("Directory")
+        String directory;
+        @Label("Identifier")
+        String identifier;
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("org.apache.guacamole.dynamic.GuacdHandshake")
+    @Label("guacd Handshake")
+    @Category({ "Guacamole", "Dynamic Connection" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class HandshakeEvent extends Event {
+        @Label("Protocol")
+        String protocol;
+        @Label("guacd Connection ID")
+        String guacdConnectionId;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.apache.guacamole.dynamic.Tunnel")
+    @Label("Tunnel")
+    @Category({ "Guacamole", "Dynamic Connection" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class TunnelEvent extends Event {
+        @Label("Connection ID")
+        String connectionId;
+        @Label("Tunnel UUID")
+        String tunnelUUID;
+        @Label("Protocol")
+        String protocol;
+        @Label("Path")
+        String path;
+    }
+
+    private ExtensionEvents() {
+    }
+
+    // isEnabled() 读取的是 JFR 插桩后的静态开关，未开启时事件对象经逃逸分析不会真正分配
+    private static <T extends Event> T begin(T event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public static Object beginTokenAuthentication() {
+        return begin(new TokenAuthenticationEvent());
+    }
+
+    public static void endTokenAuthentication(Object event, String path, String protocol, String outcome) {
+        if (event instanceof TokenAuthenticationEvent e && e.shouldCommit()) {
+            e.path = path;
+            e.protocol = protocol;
+            e.outcome = outcome;
+            e.commit();
+        }
+    }
+
+    public static Object beginDecryption() {
+        return begin(new DecryptionEvent());
+    }
+
+    public static void endDecryption(Object event, int tokenLength, String outcome) {
+        if (event instanceof DecryptionEvent e && e.shouldCommit()) {
+            e.tokenLength = tokenLength;
+            e.outcome = outcome;
+            e.commit();
+        }
+    }
+
+    public static Object beginStoreOperation() {
+        return begin(new StoreOperationEvent());
+    }
+
+    public static void endStoreOperation(Object event, String operation, String connectionId, String outcome) {
+        if (event instanceof StoreOperationEvent e && e.shouldCommit()) {
+            e.operation = operation;
+            e.connectionId = connectionId;
+            e.outcome = outcome;
+            e.commit();
+        }
+    }
+
+    public static Object beginDirectoryLookup() {
+        return begin(new DirectoryLookupEvent());
+    }
+
+    public static void endDirectoryLookup(Object event, String directory, String identifier, boolean found) {
+        if (event instanceof DirectoryLookupEvent e && e.shouldCommit()) {
+            e.directory = directory;
+            e.identifier = identifier;
+            e.found = found;
+            e.commit();
+        }
+    }
+
+    public static Object beginHandshake() {
+        return begin(new HandshakeEvent());
+    }
+
+    public static void endHandshake(Object event, String protocol, String guacdConnectionId, String outcome) {
+        if (event instanceof HandshakeEvent e && e.shouldCommit()) {
+            e.protocol = protocol;
+            e.guacdConnectionId = guacdConnectionId;
+            e.outcome = outcome;
+            e.commit();
+        }
+    }
+
+    public static GuacamoleTunnel trackTunnel(GuacamoleTunnel tunnel, String connectionId, String protocol, String path) {
+        final TunnelEvent event = begin(new TunnelEvent());
+        if (event == null) {
+            return tunnel;
+        }
+        event.connectionId = connectionId;
+        event.tunnelUUID = tunnel.getUUID().toString();
+        event.protocol = protocol;
+        event.path = path;
+
+        return new DelegatingGuacamoleTunnel(tunnel) {
+
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void close() throws GuacamoleException {
+                try {
+                    super.close();
+                } finally {
+                    if (closed.compareAndSet(false, true) && event.shouldCommit()) {
+                        event.commit();
+                    }
+                }
+            }
+        };
+    }
+}
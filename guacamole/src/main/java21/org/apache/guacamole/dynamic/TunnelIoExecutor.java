@@ -0,0 +1,53 @@
+package org.apache.guacamole.dynamic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 隧道 I/O 执行器（Java 21 版本）
+ *
+ * 每个隧道读写请求一个虚拟线程，阻塞在 guacd socket 上时不占用平台线程。
+ * 并发数由信号量限制，超过上限时退回容器线程同步执行。
+ */
+public class TunnelIoExecutor {
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+
+    public TunnelIoExecutor(int maxConcurrent) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrent));
+    }
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public boolean tryExecute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return false;
+        }
+    }
+
+    public String getMode() {
+        return "virtual";
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
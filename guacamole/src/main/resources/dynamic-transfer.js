@@ -0,0 +1,213 @@
+/*
+ * 动态连接的文件与剪贴板传输
+ *
+ * 替换 Web 应用中文件下载、文件上传和剪贴板发送的实现：隧道属于动态连接时改走扩展的
+ * api/session/ext/dynamic-connection/transfers 接口（StreamTransferResource），由服务端按块发送、
+ * 按 ack 流控，不在隧道读线程上读写 HTTP 请求体，大段剪贴板也不再挤在隧道写请求中阻塞键鼠输入。
+ * 其他隧道（以及接口不可用时）仍使用 Web 应用原有的实现。
+ */
+
+/**
+ * 扩展传输接口的地址与请求
+ */
+angular.module('rest').factory('dynamicTransferService', ['$injector',
+        function dynamicTransferService($injector) {
+
+    // 延迟获取，避免与被装饰的服务形成循环依赖
+    var $http                 = $injector.get('$http');
+    var $q                    = $injector.get('$q');
+    var authenticationService = $injector.get('authenticationService');
+    var RestError             = $injector.get('Error');
+
+    var service = {};
+
+    /**
+     * 按隧道缓存的接口可用性，值为 resolve 为 true/false 的 promise
+     */
+    var supported = {};
+
+    /**
+     * 与 Web 应用一致：文件名中的路径分隔符替换为下划线
+     */
+    var sanitizeFilename = function sanitizeFilename(filename) {
+        return filename.replace(/[\\\/]+/g, '_');
+    };
+
+    service.getTunnelUrl = function getTunnelUrl(tunnel) {
+        return 'api/session/ext/dynamic-connection/transfers/tunnels/' + encodeURIComponent(tunnel);
+    };
+
+    service.getStreamUrl = function getStreamUrl(tunnel, index, filename) {
+        return service.getTunnelUrl(tunnel) + '/streams/' + encodeURIComponent(index)
+                + '/' + encodeURIComponent(sanitizeFilename(filename));
+    };
+
+    service.getClipboardUrl = function getClipboardUrl(tunnel, index, mimetype) {
+        return service.getTunnelUrl(tunnel) + '/clipboard/' + encodeURIComponent(index)
+                + '?type=' + encodeURIComponent(mimetype);
+    };
+
+    /**
+     * 隧道是否由扩展登记了流式传输（本次登录的动态连接），结果按隧道缓存
+     */
+    service.isSupported = function isSupported(tunnel) {
+        if (!tunnel)
+            return $q.resolve(false);
+
+        if (!supported[tunnel]) {
+            supported[tunnel] = $http({
+                method  : 'GET',
+                url     : service.getTunnelUrl(tunnel),
+                headers : { 'Guacamole-Token' : authenticationService.getCurrentToken() }
+            })
+            .then(function tunnelSupported() {
+                return true;
+            }, function tunnelNotSupported() {
+                return false;
+            });
+        }
+
+        return supported[tunnel];
+    };
+
+    /**
+     * 通过扩展接口下载流，与 Web 应用相同使用隐藏 iframe 由浏览器直接保存
+     */
+    service.download = function download(tunnel, stream, filename) {
+        var iframe = document.createElement('iframe');
+        iframe.style.display = 'none';
+        iframe.onload = function downloadComplete() {
+            if (iframe.parentNode)
+                iframe.parentNode.removeChild(iframe);
+        };
+        document.body.appendChild(iframe);
+
+        // iframe 无法设置请求头，令牌放在查询参数中
+        iframe.src = service.getStreamUrl(tunnel, stream.index, filename)
+                + '?token=' + encodeURIComponent(authenticationService.getCurrentToken());
+    };
+
+    /**
+     * POST 数据到扩展接口，错误时与 Web 应用的上传一样以 REST Error 拒绝
+     */
+    service.post = function post(url, data, progressCallback) {
+        var deferred = $q.defer();
+        var xhr = new XMLHttpRequest();
+
+        if (progressCallback && xhr.upload) {
+            xhr.upload.addEventListener('progress', function updateProgress(e) {
+                progressCallback(e.loaded);
+            });
+        }
+
+        xhr.onreadystatechange = function transferStatusChanged() {
+            if (xhr.readyState !== 4)
+                return;
+
+            if (xhr.status >= 200 && xhr.status < 300)
+                deferred.resolve();
+            else if (xhr.getResponseHeader('Content-Type') === 'application/json')
+                deferred.reject(new RestError(angular.fromJson(xhr.responseText)));
+            else
+                deferred.reject(new RestError({
+                    'type'       : RestError.Type.STREAM_ERROR,
+                    'statusCode' : xhr.status >= 400 && xhr.status < 500
+                            ? Guacamole.Status.Code.CLIENT_FORBIDDEN
+                            : Guacamole.Status.Code.INTERNAL_ERROR,
+                    'message'    : 'HTTP ' + xhr.status
+                }));
+        };
+
+        xhr.open('POST', url, true);
+        xhr.setRequestHeader('Guacamole-Token', authenticationService.getCurrentToken());
+        xhr.send(data);
+
+        return deferred.promise;
+    };
+
+    return service;
+
+}]);
+
+/**
+ * 文件下载与上传：动态连接的隧道改走扩展接口
+ */
+angular.module('rest').config(['$provide', function dynamicTunnelServiceConfig($provide) {
+
+    $provide.decorator('tunnelService', ['$delegate', '$injector',
+            function decorateTunnelService($delegate, $injector) {
+
+        var downloadStream = $delegate.downloadStream;
+        var uploadToStream = $delegate.uploadToStream;
+
+        $delegate.downloadStream = function dynamicDownloadStream(tunnel, stream, mimetype, filename) {
+            var args = arguments;
+            var dynamicTransferService = $injector.get('dynamicTransferService');
+
+            // 在扩展接口登记下载并发送第一个 ack 之前，guacd 不会发送任何 blob
+            dynamicTransferService.isSupported(tunnel).then(function streamSupported(supported) {
+                if (supported)
+                    dynamicTransferService.download(tunnel, stream, filename);
+                else
+                    downloadStream.apply($delegate, args);
+            });
+        };
+
+        $delegate.uploadToStream = function dynamicUploadToStream(tunnel, stream, file, progressCallback) {
+            var args = arguments;
+            var dynamicTransferService = $injector.get('dynamicTransferService');
+
+            return dynamicTransferService.isSupported(tunnel).then(function streamSupported(supported) {
+                if (!supported)
+                    return uploadToStream.apply($delegate, args);
+
+                return dynamicTransferService.post(
+                        dynamicTransferService.getStreamUrl(tunnel, stream.index, file.name),
+                        file, progressCallback);
+            });
+        };
+
+        return $delegate;
+
+    }]);
+
+}]);
+
+/**
+ * 剪贴板发送：动态连接的隧道改走扩展接口
+ */
+angular.module('client').config(['$provide', function dynamicClipboardConfig($provide) {
+
+    $provide.decorator('ManagedClient', ['$delegate', '$injector',
+            function decorateManagedClient($delegate, $injector) {
+
+        var setClipboard = $delegate.setClipboard;
+
+        $delegate.setClipboard = function dynamicSetClipboard(managedClient, data) {
+            var args = arguments;
+            var dynamicTransferService = $injector.get('dynamicTransferService');
+            var tunnel = managedClient.tunnel && managedClient.tunnel.uuid;
+
+            dynamicTransferService.isSupported(tunnel).then(function clipboardSupported(supported) {
+                if (!supported) {
+                    setClipboard.apply($delegate, args);
+                    return;
+                }
+
+                // 只分配流索引，clipboard 指令由服务端与内容一起按顺序发出；
+                // 内容发送完毕后由客户端结束流，流索引随之释放
+                var stream = managedClient.client.createOutputStream();
+                dynamicTransferService.post(
+                        dynamicTransferService.getClipboardUrl(tunnel, stream.index, data.type),
+                        data.data)
+                ['finally'](function clipboardSent() {
+                    stream.sendEnd();
+                });
+            });
+        };
+
+        return $delegate;
+
+    }]);
+
+}]);
@@ -0,0 +1,61 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 紧凑配置的编码还原与模板共享
+ */
+public class CompactConfigurationTest {
+
+    private static GuacamoleConfiguration rdp(String username, String password) {
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("rdp");
+        config.setParameter("hostname", "10.0.0.1");
+        config.setParameter("port", "3389");
+        config.setParameter("username", username);
+        config.setParameter("password", password);
+        config.setParameter("security", "any");
+        return config;
+    }
+
+    @Test
+    public void oversizedValuesRoundTrip() {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, '密');
+        String password = new String(chars);
+
+        CompactConfiguration compact = CompactConfiguration.of(rdp("alice", password));
+        assertEquals(password, compact.getParameter("password"));
+        assertEquals("alice", compact.getParameter("username"));
+        assertEquals("any", compact.getParameter("security"));
+        assertNull(compact.getParameter("domain"));
+
+        GuacamoleConfiguration restored = compact.toConfiguration();
+        assertEquals(password, restored.getParameter("password"));
+        assertEquals("10.0.0.1", restored.getParameter("hostname"));
+    }
+
+    @Test
+    public void perConnectionValuesShareOneTemplate() {
+        CompactConfiguration first = CompactConfiguration.of(rdp("alice", "secret"));
+        int templates = CompactConfiguration.getTemplateCount();
+
+        for (int i = 0; i < 100; i++) {
+            GuacamoleConfiguration config = rdp("user" + i, new String(new char[70000]).replace('\0', 'x') + i);
+            config.setParameter(TunnelBandwidthScheduler.LIMIT_PARAMETER, String.valueOf(1000 + i));
+            CompactConfiguration compact = CompactConfiguration.of(config);
+            assertEquals(String.valueOf(1000 + i), compact.getParameter(TunnelBandwidthScheduler.LIMIT_PARAMETER));
+        }
+
+        // 其他测试留下的模板可能已被回收，只会减少
+        assertTrue(CompactConfiguration.getTemplateCount() <= templates);
+        assertEquals("secret", first.getParameter("password"));
+    }
+}
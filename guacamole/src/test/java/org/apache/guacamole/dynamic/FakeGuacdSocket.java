@@ -0,0 +1,80 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 代替 guacd 的内存 socket：读端按测试放入的指令逐条返回（EOF 表示流结束），写端记录写入的每条指令
+ */
+class FakeGuacdSocket implements GuacamoleSocket {
+
+    static final String EOF = "";
+
+    final BlockingQueue<String> incoming = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+    volatile boolean open = true;
+
+    @Override
+    public GuacamoleReader getReader() {
+        return new GuacamoleReader() {
+
+            @Override
+            public boolean available() {
+                return !incoming.isEmpty();
+            }
+
+            @Override
+            public char[] read() throws GuacamoleException {
+                String instruction;
+                try {
+                    instruction = incoming.take();
+                } catch (InterruptedException e) {
+                    throw new GuacamoleException(e);
+                }
+                return instruction == EOF ? null : instruction.toCharArray();
+            }
+
+            @Override
+            public GuacamoleInstruction readInstruction() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return new GuacamoleWriter() {
+
+            @Override
+            public void write(char[] chunk, int offset, int length) {
+                written.add(new String(chunk, offset, length));
+            }
+
+            @Override
+            public void write(char[] chunk) {
+                write(chunk, 0, chunk.length);
+            }
+
+            @Override
+            public void writeInstruction(GuacamoleInstruction instruction) {
+                written.add(instruction.toString());
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+}
@@ -0,0 +1,31 @@
+package org.apache.guacamole.dynamic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 首个 sync 的识别只看指令的操作码
+ */
+public class LoginTracerTest {
+
+    private static boolean containsSync(String chunk) {
+        return LoginTracer.containsSync(chunk.toCharArray());
+    }
+
+    @Test
+    public void matchesSyncOpcode() {
+        assertTrue(containsSync("4.sync,4.1234;"));
+        assertTrue(containsSync("4.size,1.0,4.1024,3.768;4.sync,4.1234;"));
+        assertTrue(containsSync("3.img,2.😀x,1.0;4.sync,1.0;"));
+    }
+
+    @Test
+    public void ignoresSyncInsideArguments() {
+        assertFalse(containsSync("4.blob,1.1,7.4.sync,;"));
+        assertFalse(containsSync("4.name,15.host;4.sync,1.0;"));
+        assertFalse(containsSync("3.img,1.0,11.😀;4.sync,1.;"));
+        assertFalse(containsSync("4.size,1.0,4.1024,3.768;"));
+    }
+}
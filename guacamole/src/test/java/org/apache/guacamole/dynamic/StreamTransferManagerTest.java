@@ -0,0 +1,162 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUpstreamException;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 传输隧道对 blob/end/ack 的截获，guacd 一侧由内存中的假 socket 代替
+ */
+public class StreamTransferManagerTest {
+
+    private static final String ACK_OK = "3.ack,1.1,2.OK,1.0;";
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private FakeGuacdSocket socket;
+    private StreamTransferManager transfers;
+    private StreamTransferManager.TransferTunnel tunnel;
+
+    @Before
+    public void setUp() {
+        socket = new FakeGuacdSocket();
+        transfers = new StreamTransferManager();
+        tunnel = transfers.track(new SimpleGuacamoleTunnel(socket), null);
+    }
+
+    @After
+    public void tearDown() throws GuacamoleException {
+        executor.shutdownNow();
+        tunnel.close();
+    }
+
+    private String nextWritten() throws InterruptedException {
+        String instruction = socket.written.poll(5, TimeUnit.SECONDS);
+        if (instruction == null) {
+            fail("Nothing written to guacd");
+        }
+        return instruction;
+    }
+
+    private String read() throws GuacamoleException {
+        char[] instruction = tunnel.acquireReader().read();
+        tunnel.releaseReader();
+        return instruction != null ? new String(instruction) : null;
+    }
+
+    @Test
+    public void downloadConsumesBlobsAndNeverYieldsEmptyChunks() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Future<Long> download = executor.submit(() -> tunnel.download("1", out));
+        assertEquals(ACK_OK, nextWritten());
+
+        // 截获的 blob 是当前最后一条数据时，读取继续等到下一条真实指令
+        socket.incoming.add("4.blob,1.1,4.AAEC;");
+        Future<String> pending = executor.submit(this::read);
+        assertEquals(ACK_OK, nextWritten());
+        socket.incoming.add("4.sync,4.1234;");
+        assertEquals("4.sync,4.1234;", pending.get(5, TimeUnit.SECONDS));
+
+        // 截获的 end 之后流结束时返回 null，同样不返回空块
+        socket.incoming.add("3.end,1.1;");
+        socket.incoming.add(FakeGuacdSocket.EOF);
+        assertNull(read());
+
+        assertEquals(Long.valueOf(3), download.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {0, 1, 2}, out.toByteArray());
+    }
+
+    @Test
+    public void otherStreamsPassThrough() throws Exception {
+        Future<Long> download = executor.submit(() -> tunnel.download("1", new ByteArrayOutputStream()));
+        assertEquals(ACK_OK, nextWritten());
+
+        socket.incoming.add("4.blob,1.2,4.AAEC;");
+        assertEquals("4.blob,1.2,4.AAEC;", read());
+
+        socket.incoming.add("3.end,1.1;");
+        socket.incoming.add("4.sync,1.0;");
+        assertEquals("4.sync,1.0;", read());
+        assertEquals(Long.valueOf(0), download.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void uploadWaitsForEachAck() throws Exception {
+        Future<Long> upload = executor.submit(() -> tunnel.upload("1", new ByteArrayInputStream(new byte[] {0, 1, 2})));
+        assertEquals("4.blob,1.1,4.AAEC;", nextWritten());
+
+        socket.incoming.add(ACK_OK);
+        socket.incoming.add("4.sync,1.0;");
+        assertEquals("4.sync,1.0;", read());
+
+        assertEquals(Long.valueOf(3), upload.get(5, TimeUnit.SECONDS));
+        assertEquals("3.end,1.1;", nextWritten());
+    }
+
+    @Test
+    public void overrunFailsTheTransfer() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        Future<Long> download = executor.submit(() -> tunnel.download("1", blocked));
+        assertEquals(ACK_OK, nextWritten());
+
+        // 第一块卡在写出上，其后对端不等 ack 连续发送，超过交接队列容量
+        socket.incoming.add("4.blob,1.1,4.AAEC;");
+        for (int i = 0; i < 5; i++) {
+            socket.incoming.add("4.blob,1.1,4.AAEC;");
+        }
+        socket.incoming.add("4.sync,1.0;");
+        assertEquals("4.sync,1.0;", read());
+        release.countDown();
+
+        try {
+            download.get(5, TimeUnit.SECONDS);
+            fail("Overrun transfer completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GuacamoleUpstreamException);
+        }
+    }
+
+    @Test
+    public void shutdownFailsInFlightTransfers() throws Exception {
+        Future<Long> download = executor.submit(() -> tunnel.download("1", new ByteArrayOutputStream()));
+        assertEquals(ACK_OK, nextWritten());
+
+        transfers.shutdown();
+        try {
+            download.get(5, TimeUnit.SECONDS);
+            fail("Transfer survived shutdown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GuacamoleConnectionClosedException);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 隧道读取层的带宽调度，读取方式与 Web 应用的隧道端点相同（逐条 read，available 为 false 时 flush）
+ */
+public class TunnelBandwidthSchedulerTest {
+
+    private static final Map<String, String> PROPERTIES = new HashMap<>();
+
+    @BeforeClass
+    public static void configure() throws GuacamoleException {
+        PROPERTIES.put("dynamic-bandwidth-enabled", "true");
+        LocalEnvironment.getInstance().addGuacamoleProperties(PROPERTIES::get);
+    }
+
+    private static String instruction(int length) {
+        char[] data = new char[length];
+        Arrays.fill(data, 'A');
+        String value = new String(data);
+        return "3.img," + value.length() + "." + value + ";";
+    }
+
+    private static long drain(GuacamoleTunnel tunnel, int count) throws GuacamoleException {
+        long start = System.nanoTime();
+        GuacamoleReader reader = tunnel.acquireReader();
+        try {
+            for (int i = 0; i < count; i++) {
+                reader.read();
+            }
+        } finally {
+            tunnel.releaseReader();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void tokenLimitThrottlesTunnelReads() throws GuacamoleException {
+        FakeGuacdSocket socket = new FakeGuacdSocket();
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("ssh");
+        config.setParameter(TunnelBandwidthScheduler.LIMIT_PARAMETER, "64");
+        GuacamoleTunnel tunnel = new TunnelBandwidthScheduler().track(new SimpleGuacamoleTunnel(socket), config);
+
+        // 3 批各 32K 字符、每批之后没有后续数据，64 KB/s 扣去 100ms 突发额度约需 1.4 秒
+        for (int i = 0; i < 3; i++) {
+            socket.incoming.add(instruction(32768));
+        }
+        long elapsed = drain(tunnel, 3);
+        assertTrue("Capped reads finished in " + elapsed + " ms", elapsed >= 1000);
+    }
+
+    @Test
+    public void unlimitedSessionsDoNotWait() throws GuacamoleException {
+        FakeGuacdSocket socket = new FakeGuacdSocket();
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("ssh");
+        GuacamoleTunnel tunnel = new TunnelBandwidthScheduler().track(new SimpleGuacamoleTunnel(socket), config);
+
+        for (int i = 0; i < 3; i++) {
+            socket.incoming.add(instruction(32768));
+        }
+        long elapsed = drain(tunnel, 3);
+        assertTrue("Unlimited reads took " + elapsed + " ms", elapsed < 1000);
+    }
+}
@@ -0,0 +1,76 @@
+package org.apache.guacamole.dynamic;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.LocalEnvironment;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 合并预算通过 available() 让 Web 应用的隧道端点提前发送
+ */
+public class TunnelCoalescerTest {
+
+    private static final Map<String, String> PROPERTIES = new HashMap<>();
+
+    private static final String INSTRUCTION = "4.sync,13.1700000000000;";
+
+    @BeforeClass
+    public static void configure() throws GuacamoleException {
+        PROPERTIES.put("dynamic-tunnel-coalesce-bytes", "60");
+        PROPERTIES.put("dynamic-tunnel-coalesce-delay", "200");
+        LocalEnvironment.getInstance().addGuacamoleProperties(PROPERTIES::get);
+    }
+
+    @Test
+    public void sizeBudgetEndsBatchWhileDataIsAvailable() throws GuacamoleException {
+        FakeGuacdSocket socket = new FakeGuacdSocket();
+        GuacamoleTunnel tunnel = new TunnelCoalescer().track(new SimpleGuacamoleTunnel(socket));
+        for (int i = 0; i < 5; i++) {
+            socket.incoming.add(INSTRUCTION);
+        }
+
+        GuacamoleReader reader = tunnel.acquireReader();
+        try {
+            reader.read();
+            assertTrue(reader.available());
+            reader.read();
+            assertTrue(reader.available());
+            reader.read();
+            // 72 个字符超过 60 的预算，后面还有数据也要先发送
+            assertFalse(reader.available());
+            reader.read();
+            assertTrue(reader.available());
+            reader.read();
+            // 没有后续数据时总是立即发送
+            assertFalse(reader.available());
+        } finally {
+            tunnel.releaseReader();
+        }
+    }
+
+    @Test
+    public void timeBudgetEndsBatchWhileDataIsAvailable() throws Exception {
+        FakeGuacdSocket socket = new FakeGuacdSocket();
+        GuacamoleTunnel tunnel = new TunnelCoalescer().track(new SimpleGuacamoleTunnel(socket));
+        socket.incoming.add(INSTRUCTION);
+        socket.incoming.add(INSTRUCTION);
+
+        GuacamoleReader reader = tunnel.acquireReader();
+        try {
+            reader.read();
+            Thread.sleep(300);
+            assertFalse(reader.available());
+        } finally {
+            tunnel.releaseReader();
+        }
+    }
+}